@@ -0,0 +1,183 @@
+package ob;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * JMH benchmarks for the OrderBook mutation and query paths, per depth and with crossed or
+ * uncrossed books, driven by a {@link SyntheticFeed}. Run with {@code -prof gc} to report
+ * allocation rates next to the timings; every path measured here is expected to show 0 B/op.
+ * <p>
+ * The mutating benchmarks keep the book in step with a live feed: each invocation applies the
+ * next pre-generated event, and the buffer is refilled from the feed every {@link #CHUNK}
+ * events, so the book hovers around the target depth for any run length.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-XX:+UseParallelGC", "--add-modules=jdk.incubator.vector"})
+public class OrderBookBenchmark {
+    private static final int CHUNK = 4096;
+    private static final int SOURCES = 16;
+    private static final int BATCH = 64;
+
+    @State(Scope.Thread)
+    public static class Book {
+        @Param({"10", "100", "1000", "10000"})
+        public int depth;
+
+        @Param({"false", "true"})
+        public boolean crossed;
+
+        OrderBook book;
+        SyntheticFeed feed;
+        long[] events = new long[CHUNK * OrderBook.EVENT_SIZE];
+        int next = CHUNK;
+
+        long[] snapshot;
+        long[] scratch;
+        long[] ids = {1, 5, 9};
+        OrderBook.IdSet idSet = new OrderBook.IdSet(ids);
+        int level;
+        int levels;
+        long modifyId;
+        int tick;
+        BookColumns columns = new BookColumns();
+
+        @Setup
+        public void setUp() {
+            // One spare entry per side for addThenRemove.
+            book = new OrderBook(depth + 1);
+            feed = new SyntheticFeed(42, depth, SOURCES, crossed);
+            for (int n; (n = feed.prime(events, 0, CHUNK)) > 0; ) book.applyBatch(events, 0, n);
+            snapshot = OrderBook.realize(book.getData());
+            scratch = book.getData().clone();
+            while (book.getLevelPrice(0, levels, true, false) != Long.MIN_VALUE) levels++;
+            level = levels / 2;
+            modifyId = book.getLevelId(1, 0, false, false);
+            columns.load(snapshot);
+        }
+
+        int nextEvent() {
+            if (next == CHUNK) {
+                feed.next(events, 0, CHUNK);
+                next = 0;
+            }
+            return OrderBook.EVENT_SIZE * next++;
+        }
+
+        int nextBatch() {
+            if (next + BATCH > CHUNK) {
+                feed.next(events, 0, CHUNK);
+                next = 0;
+            }
+            int e = OrderBook.EVENT_SIZE * next;
+            next += BATCH;
+            return e;
+        }
+    }
+
+    /** One event of the default add/modify/cancel mix through the individual calls. */
+    @Benchmark
+    public void mixedEvent(Book s) {
+        s.book.apply(s.events, s.nextEvent());
+    }
+
+    /** {@link #BATCH} events of the default mix through applyBatch; divide by BATCH per event. */
+    @Benchmark
+    public void mixedBatch(Book s) {
+        s.book.applyBatch(s.events, s.nextBatch(), BATCH);
+    }
+
+    /** Insert at the middle of the bid side and cancel it again, leaving the book unchanged. */
+    @Benchmark
+    public void addThenRemove(Book s) {
+        long price = s.book.getLevelPrice(0, s.level, true, false);
+        s.book.addPrice(0, price, 100, 0, SOURCES);
+        s.book.removeLevelById(SOURCES, 0, 0);
+    }
+
+    @Benchmark
+    public void modify(Book s) {
+        s.book.modifyLevelById(s.modifyId, 0, 1, 100 + (s.tick++ & 7));
+    }
+
+    /** Full rebuild of entries, pointers, index and sums, as after a reconnect. */
+    @Benchmark
+    public void restore(Book s) {
+        s.book.restore(s.snapshot);
+    }
+
+    @Benchmark
+    public void uncross(Book s) {
+        OrderBook.uncross(s.scratch);
+    }
+
+    @Benchmark
+    public void levelPrice(Book s, Blackhole bh) {
+        bh.consume(s.book.getLevelPrice(0, s.level, true, false));
+        bh.consume(s.book.getLevelPrice(1, s.level, true, true));
+    }
+
+    @Benchmark
+    public void levelSize(Book s, Blackhole bh) {
+        bh.consume(s.book.getLevelSize(0, s.level, true, false));
+        bh.consume(s.book.getLevelSize(1, s.level, true, true));
+    }
+
+    @Benchmark
+    public long levelSizeForIds(Book s) {
+        return s.book.getLevelSizeForIds(s.ids, s.level, 0, true);
+    }
+
+    @Benchmark
+    public long levelSizeForIdSetScan(Book s) {
+        return OrderBook.getLevelSizeForIds(s.snapshot, s.idSet, s.level, 0, true);
+    }
+
+    /** Column scan of one id, with the vector kernels the fork enables; excludes the load. */
+    @Benchmark
+    public long columnsSizeForId(Book s) {
+        return s.columns.sizeForId(0, s.ids[0]);
+    }
+
+    /** What a one-off column query on the live book costs, load included. */
+    @Benchmark
+    public long columnsLoadAndSizeForId(Book s) {
+        return s.columns.load(s.book).sizeForId(0, s.ids[0]);
+    }
+
+    @Benchmark
+    public double columnsVwap(Book s) {
+        return s.columns.vwap(0, 0, s.columns.depth(0));
+    }
+
+    @Benchmark
+    public double vwap(Book s) {
+        return s.book.getVWAP(0, 0, s.levels, true, s.crossed);
+    }
+
+    @Benchmark
+    public double midpoint(Book s) {
+        return s.book.getMidpoint(true, true);
+    }
+
+    /** A seqlock-validated reader next to the plain call above. */
+    @Benchmark
+    public double readMidpoint(Book s) {
+        return s.book.read(OrderBook::getMidpoint, true, true);
+    }
+}
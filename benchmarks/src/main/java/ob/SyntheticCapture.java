@@ -0,0 +1,56 @@
+package ob;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.SplittableRandom;
+
+/**
+ * Writes synthetic captures for {@link BookReplay} from one seeded {@link SyntheticFeed} per
+ * symbol. Run from the benchmarks jar:
+ * {@code java -cp benchmarks/target/benchmarks.jar ob.SyntheticCapture <file> <symbols> <depth> <events> [seed]}.
+ */
+public final class SyntheticCapture {
+    private SyntheticCapture() {
+    }
+
+    /**
+     * Writes a capture of events records over symbols 0 to symbols - 1: first enough adds to
+     * fill every book to depth, then the default add/modify/cancel mix of a seeded
+     * {@link SyntheticFeed} per symbol, interleaved at random. Timestamps are the record index
+     * times spacing, so captures pace at one record per spacing ticks.
+     */
+    public static void generate(Path file, long seed, int symbols, int depth, long events, long spacing)
+            throws IOException {
+        SplittableRandom random = new SplittableRandom(seed);
+        SyntheticFeed[] feeds = new SyntheticFeed[symbols];
+        for (int s = 0; s < symbols; s++) feeds[s] = new SyntheticFeed(seed + s, depth, 16, s % 2 == 1);
+
+        long[] event = new long[OrderBook.EVENT_SIZE];
+        try (BookReplay.Writer out = BookReplay.create(file)) {
+            long written = 0;
+            for (int s = 0; s < symbols && written < events; s++) {
+                while (written < events && feeds[s].prime(event, 0, 1) == 1) {
+                    event[4] = written++ * spacing;
+                    out.append(s, event, 0);
+                }
+            }
+            while (written < events) {
+                int s = random.nextInt(symbols);
+                feeds[s].next(event, 0, 1);
+                event[4] = written++ * spacing;
+                out.append(s, event, 0);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 4) {
+            System.err.println("usage: SyntheticCapture <file> <symbols> <depth> <events> [seed]");
+            System.exit(2);
+        }
+        long seed = args.length > 4 ? Long.parseLong(args[4]) : 42;
+        generate(Paths.get(args[0]), seed, Integer.parseInt(args[1]), Integer.parseInt(args[2]),
+                Long.parseLong(args[3]), 1000);
+    }
+}
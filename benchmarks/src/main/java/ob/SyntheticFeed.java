@@ -0,0 +1,126 @@
+package ob;
+
+import java.util.SplittableRandom;
+
+/**
+ * Seeded generator of book mutations in the {@link OrderBook#applyBatch} event format.
+ * <p>
+ * It tracks how many entries every source holds on each side, so the modifies and cancels it
+ * emits always name an existing (id, level) pair, and a book fed the same stream from empty
+ * stays in step with it indefinitely. Sides grow towards the target depth and then hover
+ * there. Prices are drawn from a band of ticks behind a fixed midpoint, about four entries per
+ * price; a crossed feed shifts both bands through the midpoint so the collapsed sides overlap.
+ */
+public final class SyntheticFeed {
+    /** Default event mix in percent: adds, then modifies; the rest are cancels. */
+    public static final int ADD_PERCENT = 50;
+    public static final int MODIFY_PERCENT = 20;
+
+    private final SplittableRandom random;
+    private final int depth;
+    private final int sources;
+    private final long mid;
+    private final int band;
+    private final int cross;
+    private final int[][] counts;
+    private final int[] depths = new int[2];
+    private long ts;
+
+    /**
+     * @param depth   target entries per side; the feed never adds beyond it
+     * @param sources number of distinct ids, 0 to sources - 1
+     */
+    public SyntheticFeed(long seed, int depth, int sources, boolean crossed) {
+        if (depth < 1 || sources < 1) throw new IllegalArgumentException("depth and sources must be positive");
+        this.random = new SplittableRandom(seed);
+        this.depth = depth;
+        this.sources = sources;
+        this.mid = 1_000_000;
+        this.band = Math.max(1, depth / 4);
+        this.cross = crossed ? Math.max(1, band / 8) : 0;
+        this.counts = new int[2][sources];
+    }
+
+    /** Entries the feed believes side holds after the events generated so far. */
+    public int depth(int side) {
+        return depths[side];
+    }
+
+    /** Writes count adds into events at from, filling both sides up to the target depth. */
+    public int prime(long[] events, int from, int count) {
+        int n = Math.min(count, 2 * depth - depths[0] - depths[1]);
+        for (int i = 0, e = from; i < n; i++, e += OrderBook.EVENT_SIZE) {
+            int side = depths[0] < depths[1] || depths[1] == depth ? 0 : 1;
+            add(events, e, side);
+        }
+        return n;
+    }
+
+    /** Writes count events of the default mix into events at from. */
+    public void next(long[] events, int from, int count) {
+        next(events, from, count, ADD_PERCENT, MODIFY_PERCENT);
+    }
+
+    /** Writes count events into events at from, with the given percentages of adds and modifies. */
+    public void next(long[] events, int from, int count, int addPercent, int modifyPercent) {
+        for (int i = 0, e = from; i < count; i++, e += OrderBook.EVENT_SIZE) {
+            int side = random.nextInt(2);
+            int roll = random.nextInt(100);
+            if (depths[side] == 0 || roll < addPercent && depths[side] < depth) {
+                add(events, e, side);
+            } else if (roll < addPercent + modifyPercent) {
+                modify(events, e, side);
+            } else {
+                cancel(events, e, side);
+            }
+        }
+    }
+
+    private void add(long[] events, int e, int side) {
+        int source = random.nextInt(sources);
+        int ticks = 1 + random.nextInt(band) - cross;
+        events[e] = OrderBook.OP_ADD;
+        events[e + 1] = side;
+        events[e + 2] = side == 0 ? mid - ticks : mid + ticks;
+        events[e + 3] = size();
+        events[e + 4] = ++ts;
+        events[e + 5] = source;
+        counts[side][source]++;
+        depths[side]++;
+    }
+
+    private void modify(long[] events, int e, int side) {
+        int source = holder(side);
+        events[e] = OrderBook.OP_MODIFY;
+        events[e + 1] = side;
+        events[e + 2] = random.nextInt(counts[side][source]);
+        events[e + 3] = size();
+        events[e + 4] = ++ts;
+        events[e + 5] = source;
+    }
+
+    private void cancel(long[] events, int e, int side) {
+        int source = holder(side);
+        events[e] = OrderBook.OP_REMOVE;
+        events[e + 1] = side;
+        events[e + 2] = random.nextInt(counts[side][source]);
+        events[e + 3] = 0;
+        events[e + 4] = ++ts;
+        events[e + 5] = source;
+        counts[side][source]--;
+        depths[side]--;
+    }
+
+    // A random source with at least one entry on a non-empty side.
+    private int holder(int side) {
+        int source = random.nextInt(sources);
+        while (counts[side][source] == 0) source = source + 1 == sources ? 0 : source + 1;
+        return source;
+    }
+
+    // Lot sizes between 1 and 100 lots of 100, skewed towards small orders.
+    private long size() {
+        int lots = 1 + random.nextInt(10);
+        return 100L * (random.nextInt(10) == 0 ? lots * 10 : lots);
+    }
+}
@@ -0,0 +1,284 @@
+package ob;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Column-oriented copy of a book array: per side, separate price, size, timestamp and id
+ * arrays in book order. Id filters, equal-price size sums and notional reductions read just
+ * those columns, using jdk.incubator.vector kernels when the module is present
+ * ({@code --add-modules jdk.incubator.vector}) and scalar loops otherwise. {@link #kernels()}
+ * reports which.
+ * <p>
+ * The book does not maintain the columns: every {@link #load} copies all entries of both sides,
+ * which costs as much as one scan of the interleaved book. A load only pays off when several
+ * column queries share it, e.g. over a realized snapshot. For a single query on the live book,
+ * the indexed ForIds accessors and the Fenwick-backed level sizes and VWAPs are cheaper.
+ * Loads reuse the column arrays.
+ */
+public final class BookColumns {
+    private static final Kernels KERNELS = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()
+            ? VectorKernels.create() : new ScalarKernels();
+
+    private final long[][] prices = new long[2][];
+    private final long[][] sizes = new long[2][];
+    private final long[][] timestamps = new long[2][];
+    private final long[][] ids = new long[2][];
+    private final int[] depths = new int[2];
+
+    public BookColumns() {
+        for (int side = 0; side < 2; side++) {
+            prices[side] = sizes[side] = timestamps[side] = ids[side] = new long[0];
+        }
+    }
+
+    /** "vector" or "scalar", the kernels every instance uses. */
+    public static String kernels() {
+        return KERNELS.name();
+    }
+
+    /** Loads the entries of a book array, live or realized, that no other thread is writing. */
+    public BookColumns load(long[] data) {
+        for (int side = 0; side < 2; side++) {
+            int depth = (int) data[side];
+            if (prices[side].length < depth) {
+                int n = Math.max(depth, 2 * prices[side].length);
+                prices[side] = new long[n];
+                sizes[side] = new long[n];
+                timestamps[side] = new long[n];
+                ids[side] = new long[n];
+            }
+            long[] p = prices[side], s = sizes[side], t = timestamps[side], d = ids[side];
+            for (int i = 0, off = (int) data[data.length - OrderBook.META + OrderBook.M_BID_BASE + side]; i < depth; i++, off += 4) {
+                p[i] = data[off];
+                s[i] = data[off + 1];
+                t[i] = data[off + 2];
+                d[i] = data[off + 3];
+            }
+            depths[side] = depth;
+        }
+        return this;
+    }
+
+    /** Loads a consistent view of book, retrying while its writer is active. */
+    public BookColumns load(OrderBook book) {
+        for (;;) {
+            long stamp = book.tryRead();
+            if (stamp != 0) {
+                try {
+                    load(book.getData());
+                    if (book.validate(stamp)) return this;
+                } catch (IndexOutOfBoundsException torn) {
+                    // a half-written depth or offset; retry
+                }
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    public int depth(int side) {
+        return depths[side];
+    }
+
+    /** Price column of side; entries past {@link #depth(int)} are stale. */
+    public long[] prices(int side) {
+        return prices[side];
+    }
+
+    public long[] sizes(int side) {
+        return sizes[side];
+    }
+
+    public long[] timestamps(int side) {
+        return timestamps[side];
+    }
+
+    public long[] ids(int side) {
+        return ids[side];
+    }
+
+    /** Total size of id's entries on side. */
+    public long sizeForId(int side, long id) {
+        return KERNELS.sumWhere(ids[side], id, sizes[side], 0, depths[side]);
+    }
+
+    /** Total size of the entries on side whose id is in the set. */
+    public long sizeForIds(int side, OrderBook.IdSet set) {
+        long total = 0;
+        for (long id : set.ids) total += sizeForId(side, id);
+        return total;
+    }
+
+    public int countForId(int side, long id) {
+        return KERNELS.countWhere(ids[side], id, 0, depths[side]);
+    }
+
+    /**
+     * Writes the raw indices of id's entries on side into out, in book order, and returns how
+     * many there are; out must hold {@link #depth(int)} ints.
+     */
+    public int indicesOf(int side, long id, int[] out) {
+        return KERNELS.indexWhere(ids[side], id, 0, depths[side], out);
+    }
+
+    /** Total size resting at exactly price on side, 0 if there is no such level. */
+    public long sizeAt(int side, long price) {
+        int from = after(side, price, false);
+        return KERNELS.sum(sizes[side], from, after(side, price, true));
+    }
+
+    /** Total size on side priced at price or better, i.e. what a sweep to price would take. */
+    public long sizeThrough(int side, long price) {
+        return KERNELS.sum(sizes[side], 0, after(side, price, true));
+    }
+
+    /** Size-weighted average price of raw entries [from, to) on side, NaN if they hold no size. */
+    public double vwap(int side, int from, int to) {
+        to = Math.min(to, depths[side]);
+        if (from >= to) return Double.NaN;
+        long size = KERNELS.sum(sizes[side], from, to);
+        return size > 0 ? KERNELS.dot(prices[side], sizes[side], from, to) / size : Double.NaN;
+    }
+
+    // First index priced worse than price, or with inclusive=false, first at price or worse.
+    private int after(int side, long price, boolean inclusive) {
+        long[] p = prices[side];
+        int lo = 0, hi = depths[side];
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            long q = p[mid];
+            boolean ahead = side == 0 ? (inclusive ? q >= price : q > price) : (inclusive ? q <= price : q < price);
+            if (ahead) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    interface Kernels {
+        String name();
+
+        long sum(long[] a, int from, int to);
+
+        /** Sum of a[i] * b[i] as doubles. */
+        double dot(long[] a, long[] b, int from, int to);
+
+        /** Sum of val[i] where key[i] == k. */
+        long sumWhere(long[] key, long k, long[] val, int from, int to);
+
+        int countWhere(long[] key, long k, int from, int to);
+
+        /** Writes each i where key[i] == k to out and returns the count. */
+        int indexWhere(long[] key, long k, int from, int to, int[] out);
+    }
+
+    static final class ScalarKernels implements Kernels {
+        public String name() {
+            return "scalar";
+        }
+
+        public long sum(long[] a, int from, int to) {
+            long s = 0;
+            for (int i = from; i < to; i++) s += a[i];
+            return s;
+        }
+
+        public double dot(long[] a, long[] b, int from, int to) {
+            double s = 0;
+            for (int i = from; i < to; i++) s += (double) a[i] * b[i];
+            return s;
+        }
+
+        public long sumWhere(long[] key, long k, long[] val, int from, int to) {
+            long s = 0;
+            for (int i = from; i < to; i++) s += key[i] == k ? val[i] : 0;
+            return s;
+        }
+
+        public int countWhere(long[] key, long k, int from, int to) {
+            int n = 0;
+            for (int i = from; i < to; i++) n += key[i] == k ? 1 : 0;
+            return n;
+        }
+
+        public int indexWhere(long[] key, long k, int from, int to, int[] out) {
+            int n = 0;
+            for (int i = from; i < to; i++) {
+                out[n] = i;
+                n += key[i] == k ? 1 : 0;
+            }
+            return n;
+        }
+    }
+
+    // Only loaded when the incubator module is present.
+    static final class VectorKernels implements Kernels {
+        private static final VectorSpecies<Long> LONGS = LongVector.SPECIES_PREFERRED;
+        private static final VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_PREFERRED;
+        private static final ScalarKernels TAIL = new ScalarKernels();
+
+        static Kernels create() {
+            // Notional lanes convert longs to doubles in place, so both shapes must match.
+            if (LONGS.length() != DOUBLES.length()) return TAIL;
+            return new VectorKernels();
+        }
+
+        public String name() {
+            return "vector";
+        }
+
+        public long sum(long[] a, int from, int to) {
+            int i = from;
+            LongVector acc = LongVector.zero(LONGS);
+            for (int bound = from + LONGS.loopBound(to - from); i < bound; i += LONGS.length()) {
+                acc = acc.add(LongVector.fromArray(LONGS, a, i));
+            }
+            return acc.reduceLanes(VectorOperators.ADD) + TAIL.sum(a, i, to);
+        }
+
+        public double dot(long[] a, long[] b, int from, int to) {
+            int i = from;
+            DoubleVector acc = DoubleVector.zero(DOUBLES);
+            for (int bound = from + LONGS.loopBound(to - from); i < bound; i += LONGS.length()) {
+                DoubleVector x = (DoubleVector) LongVector.fromArray(LONGS, a, i).convert(VectorOperators.L2D, 0);
+                DoubleVector y = (DoubleVector) LongVector.fromArray(LONGS, b, i).convert(VectorOperators.L2D, 0);
+                acc = x.fma(y, acc);
+            }
+            return acc.reduceLanes(VectorOperators.ADD) + TAIL.dot(a, b, i, to);
+        }
+
+        public long sumWhere(long[] key, long k, long[] val, int from, int to) {
+            int i = from;
+            LongVector acc = LongVector.zero(LONGS);
+            for (int bound = from + LONGS.loopBound(to - from); i < bound; i += LONGS.length()) {
+                VectorMask<Long> hit = LongVector.fromArray(LONGS, key, i).compare(VectorOperators.EQ, k);
+                acc = acc.add(LongVector.fromArray(LONGS, val, i), hit);
+            }
+            return acc.reduceLanes(VectorOperators.ADD) + TAIL.sumWhere(key, k, val, i, to);
+        }
+
+        public int countWhere(long[] key, long k, int from, int to) {
+            int i = from;
+            int n = 0;
+            for (int bound = from + LONGS.loopBound(to - from); i < bound; i += LONGS.length()) {
+                n += LongVector.fromArray(LONGS, key, i).compare(VectorOperators.EQ, k).trueCount();
+            }
+            return n + TAIL.countWhere(key, k, i, to);
+        }
+
+        public int indexWhere(long[] key, long k, int from, int to, int[] out) {
+            int i = from;
+            int n = 0;
+            for (int bound = from + LONGS.loopBound(to - from); i < bound; i += LONGS.length()) {
+                long bits = LongVector.fromArray(LONGS, key, i).compare(VectorOperators.EQ, k).toLong();
+                for (; bits != 0; bits &= bits - 1) out[n++] = i + Long.numberOfTrailingZeros(bits);
+            }
+            for (; i < to; i++) {
+                if (key[i] == k) out[n++] = i;
+            }
+            return n;
+        }
+    }
+}
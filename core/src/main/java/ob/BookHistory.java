@@ -0,0 +1,210 @@
+package ob;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Bounded history of one book for as-of queries: a ring of the book's mutations in the
+ * {@link OrderBook#applyBatch} event format, each stamped with a clock reading, and a ring
+ * of keyframes, full copies of the book array taken every interval mutations and on every
+ * restore. Both rings are allocated up front, so recording never allocates unless the book
+ * has grown past its keyframe buffers.
+ * <p>
+ * {@link #asOf(long)} and {@link #atVersion(long)} materialise a past state in a view book
+ * by restoring the nearest keyframe at or before it and replaying at most about interval
+ * mutations. A query that moves forward from the view's current state replays only the
+ * mutations in between, so sweeping through time in order costs one replay overall. The view
+ * is only valid until the next query and must not be mutated; {@link OrderBook#realize} it to
+ * keep a copy.
+ * <p>
+ * A restore, or attaching again, replaces the state without an event, so it counts as a
+ * version of its own: every version names exactly one state, and queries never replay across
+ * the jump.
+ * <p>
+ * Record and query on the book's writer thread. Spilled entries are not in the book array, so
+ * books with {@link OrderBook#OVERFLOW_SPILL} are not supported.
+ */
+public final class BookHistory {
+    private final LongSupplier clock;
+    private final int interval;
+    private final int capacity;
+
+    // Mutation ring: the version-th mutation sits in slot version % capacity.
+    private final long[] times;
+    private final long[] events;
+    private long version;
+    private long lastTime;
+
+    // Keyframe ring: the n-th keyframe ever taken sits in slot n % frames.length.
+    private final long[][] frames;
+    private final long[] frameVersion;
+    private final long[] frameTime;
+    private long framesTaken;
+
+    private OrderBook book;
+    private final OrderBook view = new OrderBook(1, OrderBook.OVERFLOW_GROW);
+    private long viewFrame = -1;
+    private long viewVersion;
+
+    /**
+     * Keeps keyframes keyframes, one every interval mutations, and the mutations since the
+     * oldest of them. clock stamps each mutation and must not go backwards; System::nanoTime
+     * or a feed clock for exchange time.
+     */
+    public BookHistory(int keyframes, int interval, LongSupplier clock) {
+        if (keyframes < 1 || interval < 1) throw new IllegalArgumentException("keyframes and interval must be positive");
+        this.clock = clock;
+        this.interval = interval;
+        this.capacity = keyframes * interval;
+        this.times = new long[capacity];
+        this.events = new long[capacity * OrderBook.EVENT_SIZE];
+        this.frames = new long[keyframes][];
+        this.frameVersion = new long[keyframes];
+        this.frameTime = new long[keyframes];
+    }
+
+    /**
+     * Starts recording book's mutations, beginning with a keyframe of its current state. A book
+     * recorded before stops feeding this history; the states recorded from it stay queryable.
+     */
+    public void attach(OrderBook book) {
+        if (book.getOverflow() == OrderBook.OVERFLOW_SPILL) throw new IllegalArgumentException("History cannot see spilled entries");
+        if (this.book != null && this.book != book && this.book.getHistory() == this) this.book.setHistory(null);
+        this.book = book;
+        int length = book.getData().length;
+        for (int i = 0; i < frames.length; i++) {
+            if (frames[i] == null) frames[i] = new long[length];
+        }
+        book.attachHistory(this);
+        restored();
+    }
+
+    /** Number of mutations and restores recorded so far; the current state is this version. */
+    public long version() {
+        return version;
+    }
+
+    /** Earliest version that can still be materialised, or -1 before {@link #attach}. */
+    public long oldestVersion() {
+        int f = oldestFrame();
+        return f < 0 ? -1 : frameVersion[f];
+    }
+
+    /** Earliest time that can still be queried, or Long.MAX_VALUE before {@link #attach}. */
+    public long oldestTime() {
+        int f = oldestFrame();
+        return f < 0 ? Long.MAX_VALUE : frameTime[f];
+    }
+
+    void append(int op, int side, long a, long size, long ts, long id) {
+        long now = clock.getAsLong();
+        int at = (int) (version % capacity);
+        times[at] = now;
+        at *= OrderBook.EVENT_SIZE;
+        events[at] = op;
+        events[at + 1] = side;
+        events[at + 2] = a;
+        events[at + 3] = size;
+        events[at + 4] = ts;
+        events[at + 5] = id;
+        version++;
+        lastTime = now;
+        if (version - frameVersion[(int) ((framesTaken - 1) % frames.length)] >= interval) keyframe();
+    }
+
+    void append(long[] batch, int from, int n) {
+        if (n == 0) return;
+        long now = clock.getAsLong();
+        // Events older than a full ring would be overwritten before anyone could replay them.
+        int skip = Math.max(0, n - capacity);
+        version += skip;
+        for (int i = skip; i < n; i++) {
+            int at = (int) (version % capacity);
+            times[at] = now;
+            System.arraycopy(batch, from + i * OrderBook.EVENT_SIZE, events, at * OrderBook.EVENT_SIZE, OrderBook.EVENT_SIZE);
+            version++;
+        }
+        lastTime = now;
+        if (version - frameVersion[(int) ((framesTaken - 1) % frames.length)] >= interval) keyframe();
+    }
+
+    // Starts from the book's current state. Past the first keyframe the state gets a version of
+    // its own; its ring slot is stamped but never replayed, since the newest keyframe at or
+    // before any later version or time is this one or a newer one.
+    void restored() {
+        if (framesTaken == 0) {
+            keyframe();
+            return;
+        }
+        version++;
+        keyframe();
+        times[(int) ((version - 1) % capacity)] = lastTime;
+    }
+
+    // Copies the book array into the next keyframe slot, stamped with the current version.
+    private void keyframe() {
+        long[] data = book.getData();
+        int slot = (int) (framesTaken % frames.length);
+        if (frames[slot].length != data.length) frames[slot] = new long[data.length];
+        System.arraycopy(data, 0, frames[slot], 0, data.length);
+        frameVersion[slot] = version;
+        frameTime[slot] = Math.max(lastTime, clock.getAsLong());
+        lastTime = frameTime[slot];
+        framesTaken++;
+    }
+
+    /**
+     * The book as it was after the last mutation recorded at or before time, or null if time
+     * is before {@link #oldestTime()}.
+     */
+    public OrderBook asOf(long time) {
+        long n = newestFrame(Long.MAX_VALUE, time);
+        if (n < 0) return null;
+        int slot = (int) (n % frames.length);
+        long target = frameVersion[slot];
+        while (target < version && times[(int) (target % capacity)] <= time) target++;
+        return materialise(n, target);
+    }
+
+    /** The book as it was after its first v mutations, or null if v is not retained. */
+    public OrderBook atVersion(long v) {
+        if (v > version) return null;
+        long n = newestFrame(v, Long.MAX_VALUE);
+        return n < 0 ? null : materialise(n, v);
+    }
+
+    // Newest usable keyframe at or before both version and time, as its index in keyframes taken.
+    private long newestFrame(long v, long time) {
+        for (long n = framesTaken - 1; n >= 0 && n >= framesTaken - frames.length; n--) {
+            int slot = (int) (n % frames.length);
+            if (version - frameVersion[slot] > capacity) break;
+            if (frameVersion[slot] <= v && frameTime[slot] <= time) return n;
+        }
+        return -1;
+    }
+
+    private int oldestFrame() {
+        int oldest = -1;
+        for (long n = framesTaken - 1; n >= 0 && n >= framesTaken - frames.length; n--) {
+            int slot = (int) (n % frames.length);
+            if (version - frameVersion[slot] > capacity) break;
+            oldest = slot;
+        }
+        return oldest;
+    }
+
+    private OrderBook materialise(long frame, long target) {
+        if (viewFrame != frame || viewVersion > target) {
+            int slot = (int) (frame % frames.length);
+            view.restore(frames[slot]);
+            viewFrame = frame;
+            viewVersion = frameVersion[slot];
+        }
+        while (viewVersion < target) {
+            int at = (int) (viewVersion % capacity);
+            int n = (int) Math.min(target - viewVersion, capacity - at);
+            view.applyBatch(events, at * OrderBook.EVENT_SIZE, n);
+            viewVersion += n;
+        }
+        return view;
+    }
+}
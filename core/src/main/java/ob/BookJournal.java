@@ -0,0 +1,356 @@
+package ob;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Append-only journal of book mutations with snapshot checkpoints, kept in one directory.
+ * <p>
+ * {@code journal-0.bin} and {@code journal-1.bin} are two memory-mapped segments, each a header
+ * (magic, base sequence, record count) followed by fixed-width records in the
+ * {@link OrderBook#applyBatch} event format, one per successful mutation. Appends go to the
+ * active segment, write the record and bump the count in place, and never allocate.
+ * {@code snapshot.bin} holds the sequence it covers and an {@link OrderBook#snapshot} image,
+ * spilled entries included. {@link #recover} loads the snapshot and replays only the records
+ * after it, from both segments in sequence order.
+ * <p>
+ * When the active segment fills up, the writer copies the book's entries into buffers kept
+ * from the last checkpoint, switches appends to the other segment and hands the copy to a
+ * background thread, which builds the snapshot, writes it and forces it to disk. The full
+ * segment stays intact until the next switch, so a crash before the snapshot is durable still
+ * recovers from the older snapshot and both segments. The writer only waits if a segment
+ * fills before the previous checkpoint has finished, spinning briefly and then parking until the
+ * checkpoint thread wakes it.
+ * <p>
+ * A failed background checkpoint is reported by the book's next mutation that would switch
+ * segments, before that mutation changes the book, and by every mutation after it. A
+ * {@link OrderBook#restore} is not a replayable record, so it takes a checkpoint on the writer's
+ * thread instead.
+ */
+public final class BookJournal {
+    private static final long JOURNAL_MAGIC = 0x4F424A524E4C3032L;
+    private static final long SNAPSHOT_MAGIC = 0x4F42534E41503031L;
+    private static final int HEADER = 3;
+    private static final int REPLAY_CHUNK = 256;
+    private static final int AWAIT_SPINS = 1000;
+
+    // One mapped journal file; base and count mirror its header.
+    private static final class Segment {
+        final MappedByteBuffer buffer;
+        final LongBuffer records;
+        long base;
+        int count;
+
+        Segment(MappedByteBuffer buffer, int capacity) {
+            this.buffer = buffer;
+            this.records = buffer.slice(HEADER * 8, capacity * OrderBook.EVENT_SIZE * 8)
+                    .order(ByteOrder.nativeOrder()).asLongBuffer();
+        }
+
+        void reset(long seq) {
+            // Count first: a crash between the stores leaves an empty segment, not stale records.
+            buffer.putLong(16, 0);
+            buffer.putLong(8, seq);
+            base = seq;
+            count = 0;
+        }
+    }
+
+    private final Path snapshotFile;
+    private final Segment[] segments = new Segment[2];
+    private final int capacity;
+    private final Thread checkpointer;
+
+    private OrderBook book;
+    private int active;
+
+    // Entries copied by the writer for the background checkpoint, reused across checkpoints.
+    private final long[][] entries = {new long[0], new long[0]};
+    private final int[] entryCounts = new int[2];
+    private long checkpointSeq;
+    private volatile boolean busy;
+    private volatile boolean closed;
+    private volatile IOException failure;
+    // The writer parked in awaitCheckpoint, if any, for the checkpoint thread to wake.
+    private volatile Thread waiter;
+    // Owned by whichever thread writes the snapshot; only one does at a time.
+    private ByteBuffer out = ByteBuffer.allocate(0);
+
+    private BookJournal(Path dir, int capacity) {
+        this.snapshotFile = dir.resolve("snapshot.bin");
+        this.capacity = capacity;
+        this.checkpointer = new Thread(this::runCheckpoints, "book-journal-checkpoint");
+        checkpointer.setDaemon(true);
+    }
+
+    /**
+     * Opens the journal in dir, creating it if needed, with room for capacity records per
+     * segment before a checkpoint. Existing segments keep their records until {@link #recover}.
+     */
+    public static BookJournal open(Path dir, int capacity) throws IOException {
+        Files.createDirectories(dir);
+        BookJournal journal = new BookJournal(dir, capacity);
+        long size = (HEADER + (long) capacity * OrderBook.EVENT_SIZE) * 8;
+        for (int i = 0; i < 2; i++) {
+            MappedByteBuffer buffer;
+            try (FileChannel ch = FileChannel.open(dir.resolve("journal-" + i + ".bin"), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                if (ch.size() > size) throw new IllegalArgumentException("Journal larger than capacity");
+                buffer = ch.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+            buffer.order(ByteOrder.nativeOrder());
+            Segment segment = journal.segments[i] = new Segment(buffer, capacity);
+            if (buffer.getLong(0) == JOURNAL_MAGIC) {
+                segment.base = buffer.getLong(8);
+                segment.count = (int) buffer.getLong(16);
+            } else {
+                buffer.putLong(8, 0);
+                buffer.putLong(16, 0);
+                buffer.putLong(0, JOURNAL_MAGIC);
+            }
+        }
+        // The segment with the latest records is the one appends continue in.
+        Segment a = journal.segments[0], b = journal.segments[1];
+        journal.active = b.base + b.count > a.base + a.count ? 1 : 0;
+        journal.checkpointer.start();
+        return journal;
+    }
+
+    /** Starts journaling book's mutations. */
+    public void attach(OrderBook book) {
+        this.book = book;
+        reserve(book);
+        book.setJournal(this);
+    }
+
+    /** Sequence number of the next mutation, i.e. the number of mutations recorded so far. */
+    public long sequence() {
+        Segment s = segments[active];
+        return s.base + s.count;
+    }
+
+    /**
+     * Called by the book before a mutation that will append up to n records: waits for the
+     * background checkpoint if the appends would switch segments, and throws if a checkpoint
+     * failed, so the book is not changed when its record cannot be kept.
+     */
+    void prepare(int n) {
+        if (n > capacity - segments[active].count) awaitCheckpoint();
+        IOException e = failure;
+        if (e != null) throw new IllegalStateException("Journal checkpoint failed", e);
+    }
+
+    /** Called by the book after a restore, which no record describes: checkpoints the book. */
+    void restored() {
+        checkpointQuietly(0);
+    }
+
+    void append(int op, int side, long a, long size, long ts, long id) {
+        boolean full = segments[active].count == capacity;
+        if (full) switchSegments();
+        Segment s = segments[active];
+        int at = s.count * OrderBook.EVENT_SIZE;
+        s.records.put(at, op);
+        s.records.put(at + 1, side);
+        s.records.put(at + 2, a);
+        s.records.put(at + 3, size);
+        s.records.put(at + 4, ts);
+        s.records.put(at + 5, id);
+        s.buffer.putLong(16, ++s.count);
+        if (full) startCheckpoint();
+    }
+
+    void append(long[] events, int from, int n) {
+        if (n == 0) return;
+        if (n > capacity) {
+            // No segment holds the batch; the book already contains it, so a snapshot covers it.
+            checkpointQuietly(n);
+            return;
+        }
+        boolean full = segments[active].count + n > capacity;
+        if (full) switchSegments();
+        Segment s = segments[active];
+        s.records.put(s.count * OrderBook.EVENT_SIZE, events, from, n * OrderBook.EVENT_SIZE);
+        s.count += n;
+        s.buffer.putLong(16, s.count);
+        if (full) startCheckpoint();
+    }
+
+    // Moves appends to the other segment, whose records the last checkpoint already covers.
+    private void switchSegments() {
+        awaitCheckpoint();
+        long seq = sequence();
+        active ^= 1;
+        segments[active].reset(seq);
+    }
+
+    // Copies the book at the current sequence and hands it to the checkpoint thread.
+    private void startCheckpoint() {
+        copyBook();
+        busy = true;
+        LockSupport.unpark(checkpointer);
+    }
+
+    private void checkpointQuietly(int pending) {
+        awaitCheckpoint();
+        Segment s = segments[active];
+        s.count += pending;
+        try {
+            checkpoint();
+        } catch (IOException e) {
+            s.count -= pending;
+            throw new IllegalStateException("Journal checkpoint failed", e);
+        }
+    }
+
+    /**
+     * Writes a snapshot of the attached book at the current sequence on the calling thread and
+     * empties the journal. Waits for a background checkpoint in progress first.
+     */
+    public void checkpoint() throws IOException {
+        if (book == null) throw new IllegalStateException("No book attached");
+        awaitCheckpoint();
+        copyBook();
+        writeSnapshot();
+        segments[active].reset(checkpointSeq);
+    }
+
+    // Grows the entry buffers to hold book's entries; the only allocation on the writer's side.
+    private void reserve(OrderBook book) {
+        for (int side = 0; side < 2; side++) {
+            int need = 4 * book.entryCount(side);
+            if (entries[side].length < need) entries[side] = new long[Math.max(need, 2 * entries[side].length)];
+        }
+    }
+
+    private void copyBook() {
+        reserve(book);
+        entryCounts[0] = book.copyEntries(0, entries[0]);
+        entryCounts[1] = book.copyEntries(1, entries[1]);
+        checkpointSeq = sequence();
+    }
+
+    private void writeSnapshot() throws IOException {
+        long[] image = OrderBook.image(entries[0], entryCounts[0], entries[1], entryCounts[1]);
+        int bytes = (2 + image.length) * 8;
+        if (out.capacity() < bytes) out = ByteBuffer.allocate(Math.max(bytes, 2 * out.capacity())).order(ByteOrder.nativeOrder());
+        out.clear();
+        out.putLong(SNAPSHOT_MAGIC).putLong(checkpointSeq);
+        out.asLongBuffer().put(image);
+        out.position(0).limit(bytes);
+
+        Path tmp = snapshotFile.resolveSibling("snapshot.tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (out.hasRemaining()) ch.write(out);
+            ch.force(true);
+        }
+        Files.move(tmp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void runCheckpoints() {
+        while (!closed) {
+            if (!busy) {
+                LockSupport.park(this);
+                continue;
+            }
+            try {
+                writeSnapshot();
+            } catch (IOException e) {
+                failure = e;
+            }
+            busy = false;
+            Thread w = waiter;
+            if (w != null) LockSupport.unpark(w);
+        }
+    }
+
+    // Waits for the background checkpoint, if any, and rethrows its failure.
+    private void awaitCheckpoint() {
+        if (busy) {
+            waiter = Thread.currentThread();
+            // The waiter is set before busy is read again, so the checkpoint thread either
+            // sees it after clearing busy or the loop sees busy cleared.
+            for (int spins = 0; busy; spins++) {
+                if (spins < AWAIT_SPINS) Thread.onSpinWait();
+                else LockSupport.park(this);
+            }
+            waiter = null;
+        }
+        IOException e = failure;
+        if (e != null) throw new IllegalStateException("Journal checkpoint failed", e);
+    }
+
+    /**
+     * Restores book from the last snapshot, replays the journal records after it and attaches
+     * the journal to book. Without a snapshot the whole journal is replayed onto book as is.
+     */
+    public void recover(OrderBook book) throws IOException {
+        awaitCheckpoint();
+        book.setJournal(null);
+        Segment older = segments[active ^ 1];
+        Segment newer = segments[active];
+        long from = older.count > 0 ? older.base : newer.base;
+        if (Files.exists(snapshotFile)) {
+            ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(snapshotFile)).order(ByteOrder.nativeOrder());
+            if (in.getLong() != SNAPSHOT_MAGIC) throw new IOException("Not a book snapshot: " + snapshotFile);
+            from = in.getLong();
+            long[] image = new long[in.remaining() / 8];
+            in.asLongBuffer().get(image);
+            book.restore(image);
+        }
+
+        long[] chunk = new long[REPLAY_CHUNK * OrderBook.EVENT_SIZE];
+        replay(newer, replay(older, from, book, chunk), book, chunk);
+        if (from > sequence()) newer.reset(from);
+        attach(book);
+        // The next switch reuses the older segment, so the snapshot must cover it first.
+        if (older.base + older.count > from) checkpoint();
+    }
+
+    // Applies the records of s from sequence next on and returns the sequence after them.
+    private static long replay(Segment s, long next, OrderBook book, long[] chunk) throws IOException {
+        if (s.base + s.count <= next) return next;
+        if (s.base > next) throw new IOException("Journal starts after snapshot; records lost");
+        for (int i = (int) (next - s.base); i < s.count; ) {
+            int n = Math.min(REPLAY_CHUNK, s.count - i);
+            s.records.get(i * OrderBook.EVENT_SIZE, chunk, 0, n * OrderBook.EVENT_SIZE);
+            book.applyBatch(chunk, 0, n);
+            i += n;
+        }
+        return s.base + s.count;
+    }
+
+    /** Forces journal writes to the storage device; mapped writes already survive a process crash. */
+    public void force() {
+        segments[0].buffer.force();
+        segments[1].buffer.force();
+    }
+
+    /**
+     * Waits for a background checkpoint in progress and stops the checkpoint thread, then
+     * rethrows a checkpoint failure.
+     */
+    public void close() {
+        try {
+            awaitCheckpoint();
+        } finally {
+            closed = true;
+            LockSupport.unpark(checkpointer);
+            try {
+                checkpointer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
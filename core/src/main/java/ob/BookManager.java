@@ -0,0 +1,339 @@
+package ob;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Many OrderBooks keyed by a long symbol, split across shards that each own their books, a
+ * pool of spare books per depth class and a single-producer single-consumer queue of updates.
+ * <p>
+ * A symbol's shard is a fixed hash of the symbol, so producers route without shared state:
+ * {@link #offer} copies one update, in the {@link OrderBook#applyBatch} event format plus the
+ * symbol, into that shard's ring. Each shard must have at most one producer thread at a time.
+ * {@link #drain} is the consumer side: it takes a window of updates, groups them by book while
+ * keeping each book's order, and applies each group with one applyBatch call. Shards share
+ * nothing, so {@link #start} runs one draining thread per shard.
+ * <p>
+ * Books come from per-shard pools sized by depth class (powers of two), preallocated with
+ * {@link #reserve} so one shard's books are allocated together and reused on
+ * {@link #unregister}. Registration is not synchronized with draining: register before
+ * {@link #start}, or from the thread that drains the shard.
+ */
+public final class BookManager implements AutoCloseable {
+    /** Longs per queued update: symbol, then an {@link OrderBook#EVENT_SIZE} event. */
+    public static final int RECORD_SIZE = 1 + OrderBook.EVENT_SIZE;
+
+    private static final int MIN_CLASS = 4;
+    private static final int CLASSES = 28;
+    private static final int IDLE_SPINS = 1000;
+    private static final long IDLE_PARK_NANOS = 50_000;
+
+    private static final VarHandle POSITION = MethodHandles.arrayElementVarHandle(long[].class);
+    // Producer and consumer positions sit 16 longs (128 bytes) apart, so adjacent-line
+    // prefetching does not pair them, and at least 64 bytes from either end of the array. The
+    // producer's cached copy of the head shares the tail's line, the only one it writes.
+    private static final int TAIL = 8;
+    private static final int CACHED_HEAD = TAIL + 1;
+    private static final int HEAD = 24;
+
+    private final Shard[] shards;
+    private final int window;
+    private Thread[] threads;
+    private volatile boolean running;
+
+    /**
+     * @param shards   number of shards, e.g. one per core
+     * @param capacity queued updates per shard, rounded up to a power of two
+     * @param window   most updates one drain call applies
+     */
+    public BookManager(int shards, int capacity, int window) {
+        if (shards < 1 || capacity < 1 || window < 1) throw new IllegalArgumentException("Sizes must be positive");
+        this.shards = new Shard[shards];
+        this.window = window;
+        int slots = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        for (int i = 0; i < shards; i++) this.shards[i] = new Shard(slots, window);
+    }
+
+    /** One shard per available processor. */
+    public BookManager(int capacity, int window) {
+        this(Runtime.getRuntime().availableProcessors(), capacity, window);
+    }
+
+    public int shards() {
+        return shards.length;
+    }
+
+    public int shardOf(long symbol) {
+        long h = symbol * 0x9E3779B97F4A7C15L;
+        return (int) (((h ^ (h >>> 32)) & 0xFFFFFFFFL) % shards.length);
+    }
+
+    private static int depthClass(int depth) {
+        int c = 32 - Integer.numberOfLeadingZeros(Math.max(1, depth) - 1);
+        return Math.max(c, MIN_CLASS);
+    }
+
+    /** Preallocates count books that can hold depth entries per side in shard's pool. */
+    public void reserve(int shard, int depth, int count) {
+        Shard s = shards[shard];
+        int c = depthClass(depth);
+        for (int i = 0; i < count; i++) s.free(c, new OrderBook(1 << c));
+    }
+
+    /** Assigns symbol a book holding at least depth entries per side, pooled if possible. */
+    public OrderBook register(long symbol, int depth) {
+        int c = depthClass(depth);
+        if (c >= CLASSES) throw new IllegalArgumentException("Depth too large: " + depth);
+        Shard s = shards[shardOf(symbol)];
+        if (s.slots.get(symbol) != 0) throw new IllegalStateException("Symbol already registered: " + symbol);
+        OrderBook book = s.take(c);
+        if (book == null) book = new OrderBook(1 << c);
+        s.add(symbol, book, c);
+        return book;
+    }
+
+    /**
+     * Detaches symbol's listener, journal and history, empties its book and returns the book to
+     * its shard's pool, so the next symbol to get it starts clean. The clears are not reported.
+     */
+    public void unregister(long symbol) {
+        Shard s = shards[shardOf(symbol)];
+        int slot = s.slots.remove(symbol) - 1;
+        if (slot < 0) return;
+        OrderBook book = s.books[slot];
+        book.setListener(null, 0, false);
+        book.setJournal(null);
+        book.setHistory(null);
+        if (BookMetrics.ENABLED) book.getMetrics().reset();
+        book.clear(0);
+        book.clear(1);
+        s.free(s.classes[slot], book);
+        s.books[slot] = null;
+        s.freeSlots[s.freeSlotCount++] = slot;
+    }
+
+    /** The book for symbol, or null. Only the shard's draining thread may mutate it. */
+    public OrderBook book(long symbol) {
+        Shard s = shards[shardOf(symbol)];
+        int slot = s.slots.get(symbol) - 1;
+        return slot < 0 ? null : s.books[slot];
+    }
+
+    /**
+     * Queues one update for symbol's shard; the fields are those of an applyBatch event.
+     * Returns false, queuing nothing, if the shard's ring is full.
+     */
+    public boolean offer(long symbol, int op, int side, long priceOrLevel, long size, long ts, long id) {
+        Shard s = shards[shardOf(symbol)];
+        long[] positions = s.positions;
+        long tail = (long) POSITION.getOpaque(positions, TAIL);
+        if (tail - positions[CACHED_HEAD] == s.capacity) {
+            positions[CACHED_HEAD] = (long) POSITION.getAcquire(positions, HEAD);
+            if (tail - positions[CACHED_HEAD] == s.capacity) return false;
+        }
+        long[] ring = s.ring;
+        int at = (int) (tail & s.mask) * RECORD_SIZE;
+        ring[at] = symbol;
+        ring[at + 1] = op;
+        ring[at + 2] = side;
+        ring[at + 3] = priceOrLevel;
+        ring[at + 4] = size;
+        ring[at + 5] = ts;
+        ring[at + 6] = id;
+        POSITION.setRelease(positions, TAIL, tail + 1);
+        return true;
+    }
+
+    /**
+     * Applies up to max queued updates of shard, at most the window size, and returns how many
+     * were taken. Updates for unregistered symbols are dropped. An update its book rejects (e.g.
+     * depth limit) is skipped, and the rest of that book's group is still applied in order. Both
+     * are counted, and other books proceed. Must only be called by the shard's single consumer.
+     */
+    public int drain(int shard, int max) {
+        Shard s = shards[shard];
+        long head = (long) POSITION.getOpaque(s.positions, HEAD);
+        long tail = (long) POSITION.getAcquire(s.positions, TAIL);
+        int n = (int) Math.min(Math.min(tail - head, max), window);
+        if (n <= 0) return 0;
+
+        // Counting sort of the window by book slot; stable, so each book keeps its order.
+        long[] ring = s.ring;
+        int[] order = s.order;
+        int touched = 0;
+        for (int i = 0; i < n; i++) {
+            int at = (int) ((head + i) & s.mask) * RECORD_SIZE;
+            int slot = s.slots.get(ring[at]) - 1;
+            order[i] = slot;
+            if (slot < 0) {
+                s.dropped++;
+            } else if (s.counts[slot]++ == 0) {
+                s.touched[touched++] = slot;
+            }
+        }
+        for (int t = 0, start = 0; t < touched; t++) {
+            int slot = s.touched[t];
+            int count = s.counts[slot];
+            s.counts[slot] = start;
+            start += count;
+        }
+        long[] events = s.events;
+        for (int i = 0; i < n; i++) {
+            int slot = order[i];
+            if (slot < 0) continue;
+            int at = (int) ((head + i) & s.mask) * RECORD_SIZE;
+            System.arraycopy(ring, at + 1, events, s.counts[slot]++ * OrderBook.EVENT_SIZE, OrderBook.EVENT_SIZE);
+        }
+        POSITION.setRelease(s.positions, HEAD, head + n);
+
+        for (int t = 0, start = 0; t < touched; t++) {
+            int slot = s.touched[t];
+            int end = s.counts[slot];
+            s.counts[slot] = 0;
+            OrderBook book = s.books[slot];
+            while (start < end) {
+                try {
+                    book.applyBatch(events, start * OrderBook.EVENT_SIZE, end - start);
+                    break;
+                } catch (RuntimeException e) {
+                    // Skip the rejected update and carry on with the rest of the group.
+                    s.rejected++;
+                    start += book.batchApplied() + 1;
+                }
+            }
+            start = end;
+        }
+        s.applied += n;
+        return n;
+    }
+
+    /** Updates taken from shard's ring so far. */
+    public long applied(int shard) {
+        return shards[shard].applied;
+    }
+
+    /** Updates dropped because their symbol was not registered on shard. */
+    public long dropped(int shard) {
+        return shards[shard].dropped;
+    }
+
+    /** Updates rejected by their book on shard, e.g. at its depth limit, and skipped. */
+    public long rejected(int shard) {
+        return shards[shard].rejected;
+    }
+
+    /** Starts one daemon thread per shard that drains it until {@link #close}. */
+    public synchronized void start() {
+        if (threads != null) throw new IllegalStateException("Already started");
+        running = true;
+        threads = new Thread[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            int shard = i;
+            threads[i] = new Thread(() -> run(shard), "book-shard-" + i);
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+    }
+
+    private void run(int shard) {
+        int idle = 0;
+        while (running) {
+            if (drain(shard, window) > 0) {
+                idle = 0;
+            } else if (++idle < IDLE_SPINS) {
+                Thread.onSpinWait();
+            } else {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+        while (drain(shard, window) > 0) { }
+    }
+
+    /** Stops the shard threads after they drain what is queued. */
+    @Override
+    public synchronized void close() {
+        if (threads == null) return;
+        running = false;
+        boolean interrupted = false;
+        for (Thread t : threads) {
+            while (t.isAlive()) {
+                try {
+                    t.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        threads = null;
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    private static final class Shard {
+        final long[] ring;
+        final int capacity;
+        final long mask;
+        // TAIL and CACHED_HEAD for the producer, HEAD for the consumer.
+        final long[] positions = new long[HEAD + 16];
+
+        final LongIntMap slots = new LongIntMap(64);
+        OrderBook[] books = new OrderBook[64];
+        int[] classes = new int[64];
+        int[] counts = new int[64];
+        int[] touched = new int[64];
+        int[] freeSlots = new int[64];
+        int slotCount;
+        int freeSlotCount;
+
+        final OrderBook[][] pool = new OrderBook[CLASSES][];
+        final int[] pooled = new int[CLASSES];
+
+        final int[] order;
+        final long[] events;
+        // Volatile so other threads can wait on progress; written once per drain.
+        volatile long applied;
+        long dropped;
+        long rejected;
+
+        Shard(int capacity, int window) {
+            this.capacity = capacity;
+            this.mask = capacity - 1;
+            this.ring = new long[capacity * RECORD_SIZE];
+            this.order = new int[window];
+            this.events = new long[window * OrderBook.EVENT_SIZE];
+        }
+
+        void add(long symbol, OrderBook book, int c) {
+            int slot;
+            if (freeSlotCount > 0) {
+                slot = freeSlots[--freeSlotCount];
+            } else {
+                if (slotCount == books.length) grow();
+                slot = slotCount++;
+            }
+            books[slot] = book;
+            classes[slot] = c;
+            slots.put(symbol, slot + 1);
+        }
+
+        private void grow() {
+            int n = books.length << 1;
+            books = Arrays.copyOf(books, n);
+            classes = Arrays.copyOf(classes, n);
+            counts = Arrays.copyOf(counts, n);
+            touched = Arrays.copyOf(touched, n);
+            freeSlots = Arrays.copyOf(freeSlots, n);
+        }
+
+        OrderBook take(int c) {
+            return pooled[c] == 0 ? null : pool[c][--pooled[c]];
+        }
+
+        void free(int c, OrderBook book) {
+            if (pool[c] == null) pool[c] = new OrderBook[8];
+            if (pooled[c] == pool[c].length) pool[c] = Arrays.copyOf(pool[c], pooled[c] << 1);
+            pool[c][pooled[c]++] = book;
+        }
+    }
+}
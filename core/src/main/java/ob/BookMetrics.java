@@ -0,0 +1,223 @@
+package ob;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Per-book latency histograms and work counters, on when the JVM starts with
+ * {@code -Dorderbook.metrics=true}. {@link #ENABLED} is a static final, so with metrics off the
+ * JIT folds every {@code if (BookMetrics.ENABLED)} in OrderBook away, including the
+ * System.nanoTime() calls, and books carry no metrics object.
+ * <p>
+ * Only the book's writer thread records, with plain stores into preallocated arrays, and every
+ * mutating call is recorded whether it succeeds, finds nothing or throws; queries are never
+ * recorded. The histograms are 64 power-of-two nanosecond buckets per operation. Readers take
+ * {@link #snapshot()}s, possibly from another thread; a reset only moves the reader's
+ * baseline, so it never races with the writer's increments.
+ */
+public final class BookMetrics {
+    public static final boolean ENABLED = Boolean.getBoolean("orderbook.metrics");
+
+    public static final int ADD = 0;
+    public static final int MODIFY = 1;
+    public static final int REMOVE = 2;
+    public static final int CLEAR_ID = 3;
+    public static final int BATCH = 4;
+    public static final int REBUILD_PTRS = 5;
+    public static final int UNCROSS = 6;
+    public static final int EXPIRE = 7;
+    public static final int OPS = 8;
+    private static final String[] NAMES = {"add", "modify", "remove", "clearById", "batch", "rebuildPtrs", "uncross", "expire"};
+
+    public static final int BUCKETS = 64;
+
+    // Per op: count, total nanos, then the buckets; then the work counters.
+    private static final int STRIDE = 2 + BUCKETS;
+    private static final int SHIFTED = OPS * STRIDE;
+    private static final int SCANNED = SHIFTED + 1;
+    private static final int LENGTH = SCANNED + 1;
+
+    private final long[] totals = new long[LENGTH];
+    private final long[] baseline = new long[LENGTH];
+
+    BookMetrics() {
+    }
+
+    void record(int op, long start) {
+        long nanos = System.nanoTime() - start;
+        int at = op * STRIDE;
+        totals[at]++;
+        totals[at + 1] += nanos;
+        totals[at + 2 + (64 - Long.numberOfLeadingZeros(Math.max(nanos, 0)))]++;
+    }
+
+    // Array elements moved to open or close a gap.
+    void shifted(int elements) {
+        totals[SHIFTED] += elements;
+    }
+
+    // Entries visited by a writer-side scan, such as a spill lookup, before it found its target.
+    void scanned(int entries) {
+        totals[SCANNED] += entries;
+    }
+
+    /** Counts since the last reset. */
+    public synchronized Snapshot snapshot() {
+        long[] values = totals.clone();
+        for (int i = 0; i < LENGTH; i++) values[i] -= baseline[i];
+        return new Snapshot(values);
+    }
+
+    /** Counts since the last reset, starting a new interval. */
+    public synchronized Snapshot snapshotAndReset() {
+        long[] now = totals.clone();
+        long[] values = now.clone();
+        for (int i = 0; i < LENGTH; i++) values[i] -= baseline[i];
+        System.arraycopy(now, 0, baseline, 0, LENGTH);
+        return new Snapshot(values);
+    }
+
+    public synchronized void reset() {
+        System.arraycopy(totals, 0, baseline, 0, LENGTH);
+    }
+
+    public static String name(int op) {
+        return NAMES[op];
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server as
+     * {@code orderbook:type=BookMetrics,name=<name>} and returns the object name.
+     */
+    public ObjectName register(String name) throws JMException {
+        ObjectName objectName = new ObjectName("orderbook:type=BookMetrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(new View(), MXBean.class, true), objectName);
+        return objectName;
+    }
+
+    /** Counts for one interval; nanosecond values from the histograms are bucket upper bounds. */
+    public static final class Snapshot {
+        private final long[] values;
+
+        private Snapshot(long[] values) {
+            this.values = values;
+        }
+
+        public long count(int op) {
+            return values[op * STRIDE];
+        }
+
+        public long totalNanos(int op) {
+            return values[op * STRIDE + 1];
+        }
+
+        public double meanNanos(int op) {
+            long n = count(op);
+            return n == 0 ? Double.NaN : (double) totalNanos(op) / n;
+        }
+
+        /** Operations that took less than 2^bucket nanos but at least half that; bucket 0 is 0 ns. */
+        public long bucket(int op, int bucket) {
+            return values[op * STRIDE + 2 + bucket];
+        }
+
+        /** Upper bound of the bucket holding the q-th quantile, 0 < q <= 1; 0 with no samples. */
+        public long percentileNanos(int op, double q) {
+            long rank = (long) Math.ceil(q * count(op));
+            long seen = 0;
+            for (int b = 0; b < BUCKETS; b++) {
+                seen += bucket(op, b);
+                if (seen >= rank && seen > 0) return b == 0 ? 0 : b == 63 ? Long.MAX_VALUE : 1L << b;
+            }
+            return 0;
+        }
+
+        public long shiftedElements() {
+            return values[SHIFTED];
+        }
+
+        public long scannedEntries() {
+            return values[SCANNED];
+        }
+
+        /** Full pointer rebuilds, the same as count(REBUILD_PTRS). */
+        public long pointerRebuilds() {
+            return count(REBUILD_PTRS);
+        }
+    }
+
+    /** JMX view; arrays are indexed by operation, in {@link #getOperations()} order. */
+    public interface MXBean {
+        String[] getOperations();
+
+        long[] getCounts();
+
+        double[] getMeanNanos();
+
+        long[] getP50Nanos();
+
+        long[] getP99Nanos();
+
+        long getShiftedElements();
+
+        long getScannedEntries();
+
+        long getPointerRebuilds();
+
+        void reset();
+    }
+
+    private final class View implements MXBean {
+        public String[] getOperations() {
+            return NAMES.clone();
+        }
+
+        public long[] getCounts() {
+            Snapshot s = snapshot();
+            long[] r = new long[OPS];
+            for (int op = 0; op < OPS; op++) r[op] = s.count(op);
+            return r;
+        }
+
+        public double[] getMeanNanos() {
+            Snapshot s = snapshot();
+            double[] r = new double[OPS];
+            for (int op = 0; op < OPS; op++) r[op] = s.meanNanos(op);
+            return r;
+        }
+
+        public long[] getP50Nanos() {
+            return percentiles(0.5);
+        }
+
+        public long[] getP99Nanos() {
+            return percentiles(0.99);
+        }
+
+        private long[] percentiles(double q) {
+            Snapshot s = snapshot();
+            long[] r = new long[OPS];
+            for (int op = 0; op < OPS; op++) r[op] = s.percentileNanos(op, q);
+            return r;
+        }
+
+        public long getShiftedElements() {
+            return snapshot().shiftedElements();
+        }
+
+        public long getScannedEntries() {
+            return snapshot().scannedEntries();
+        }
+
+        public long getPointerRebuilds() {
+            return snapshot().pointerRebuilds();
+        }
+
+        public void reset() {
+            BookMetrics.this.reset();
+        }
+    }
+}
@@ -0,0 +1,323 @@
+package ob;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays a capture file of book events into OrderBooks and reports throughput and latency.
+ * <p>
+ * A capture is a header (magic, record count) followed by fixed-width records of
+ * {@link BookManager#RECORD_SIZE} native-order longs: a symbol, then an {@link OrderBook#applyBatch}
+ * event. The file is memory-mapped in windows and records are read straight into a reused
+ * event buffer, so a run allocates nothing per event. Records go either to books bound per
+ * symbol on the calling thread, optionally grouped into batches and paced by their recorded
+ * timestamps, or into a started {@link BookManager}. {@link #create} writes captures, and
+ * {@link #main} replays one as a load test.
+ */
+public final class BookReplay {
+    private static final long MAGIC = 0x4F425245504C3031L;
+    private static final int HEADER = 2;
+    private static final int RECORD = BookManager.RECORD_SIZE;
+    // Records per mapped window, keeping each mapping under 1 GiB.
+    private static final int WINDOW_RECORDS = (1 << 30) / (RECORD * 8);
+
+    private final LongBuffer[] windows;
+    private final long count;
+    private final LongIntMap slots = new LongIntMap(16);
+    private OrderBook[] books = new OrderBook[16];
+    private int bound;
+    private int batch = 1;
+    private long nanosPerTick;
+    private double speed;
+
+    private BookReplay(LongBuffer[] windows, long count) {
+        this.windows = windows;
+        this.count = count;
+    }
+
+    /** Maps a capture file read-only. */
+    public static BookReplay open(Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER * 8).order(ByteOrder.nativeOrder());
+            while (header.hasRemaining() && ch.read(header) >= 0) { }
+            header.flip();
+            if (header.remaining() < HEADER * 8 || header.getLong(0) != MAGIC) {
+                throw new IllegalArgumentException("Not a book capture: " + file);
+            }
+            long count = header.getLong(8);
+            if (HEADER * 8 + count * RECORD * 8 > ch.size()) throw new IllegalArgumentException("Truncated capture: " + file);
+
+            LongBuffer[] windows = new LongBuffer[(int) ((count + WINDOW_RECORDS - 1) / WINDOW_RECORDS)];
+            for (int w = 0; w < windows.length; w++) {
+                long first = (long) w * WINDOW_RECORDS;
+                long records = Math.min(WINDOW_RECORDS, count - first);
+                windows[w] = ch.map(FileChannel.MapMode.READ_ONLY, (HEADER + first * RECORD) * 8, records * RECORD * 8)
+                        .order(ByteOrder.nativeOrder()).asLongBuffer();
+            }
+            return new BookReplay(windows, count);
+        }
+    }
+
+    public long count() {
+        return count;
+    }
+
+    /** Routes symbol's records to book in {@link #run()}; records of unbound symbols are skipped. */
+    public BookReplay bind(long symbol, OrderBook book) {
+        int slot = slots.get(symbol) - 1;
+        if (slot < 0) {
+            if (bound == books.length) books = Arrays.copyOf(books, bound * 2);
+            slot = bound++;
+            slots.put(symbol, slot + 1);
+        }
+        books[slot] = book;
+        return this;
+    }
+
+    /** Applies up to n consecutive records of the same symbol with one applyBatch call. */
+    public BookReplay batch(int n) {
+        if (n < 1) throw new IllegalArgumentException("batch must be positive");
+        this.batch = n;
+        return this;
+    }
+
+    /**
+     * Holds each record back until its timestamp, at nanosPerTick nanoseconds per timestamp
+     * unit, divided by speed, has elapsed since the first timestamped record. Only adds and
+     * expiries carry a timestamp; other records follow the one before them without waiting.
+     * 0 replays flat out.
+     */
+    public BookReplay pace(long nanosPerTick, double speed) {
+        if (nanosPerTick < 0 || speed <= 0) throw new IllegalArgumentException("Bad pacing");
+        this.nanosPerTick = nanosPerTick;
+        this.speed = speed;
+        return this;
+    }
+
+    /** Replays every record into the bound books on this thread. */
+    public Report run() {
+        long[] events = new long[batch * OrderBook.EVENT_SIZE];
+        Report report = new Report();
+        long firstTs = Long.MIN_VALUE;
+        long began = System.nanoTime();
+
+        for (long r = 0; r < count; ) {
+            long symbol = field(r, 0);
+            int slot = slots.get(symbol) - 1;
+            if (slot < 0) {
+                report.skipped++;
+                r++;
+                continue;
+            }
+            if (nanosPerTick > 0 && stamped(field(r, 1))) {
+                long ts = field(r, 5);
+                if (firstTs == Long.MIN_VALUE) firstTs = ts;
+                waitUntil(began + (long) ((ts - firstTs) * nanosPerTick / speed));
+            }
+
+            int n = 0;
+            do {
+                read(r++, events, n++ * OrderBook.EVENT_SIZE);
+            } while (n < batch && r < count && field(r, 0) == symbol);
+
+            long start = System.nanoTime();
+            if (n == 1) books[slot].apply(events, 0);
+            else books[slot].applyBatch(events, 0, n);
+            report.record(System.nanoTime() - start, n);
+        }
+        report.elapsedNanos = System.nanoTime() - began;
+        return report;
+    }
+
+    /**
+     * Offers every record to manager, which must be started with the symbols registered, and
+     * waits until its shards have drained them. Reports throughput only.
+     */
+    public Report run(BookManager manager) {
+        Report report = new Report();
+        long before = 0;
+        long dropped = 0;
+        for (int s = 0; s < manager.shards(); s++) {
+            before += manager.applied(s);
+            dropped += manager.dropped(s);
+        }
+        long began = System.nanoTime();
+
+        for (long r = 0; r < count; r++) {
+            long symbol = field(r, 0);
+            while (!manager.offer(symbol, (int) field(r, 1), (int) field(r, 2), field(r, 3), field(r, 4),
+                    field(r, 5), field(r, 6))) {
+                Thread.onSpinWait();
+            }
+        }
+        for (long applied = 0; applied < count; ) {
+            applied = -before;
+            for (int s = 0; s < manager.shards(); s++) applied += manager.applied(s);
+            Thread.onSpinWait();
+        }
+        report.elapsedNanos = System.nanoTime() - began;
+        report.events = count;
+        report.skipped = -dropped;
+        for (int s = 0; s < manager.shards(); s++) report.skipped += manager.dropped(s);
+        return report;
+    }
+
+    // Whether records of op carry a time in the ts slot: the add time or the expiry cutoff.
+    private static boolean stamped(long op) {
+        return op == OrderBook.OP_ADD || op == OrderBook.OP_EXPIRE;
+    }
+
+    private long field(long record, int i) {
+        return windows[(int) (record / WINDOW_RECORDS)].get((int) (record % WINDOW_RECORDS) * RECORD + i);
+    }
+
+    private void read(long record, long[] events, int at) {
+        windows[(int) (record / WINDOW_RECORDS)].get((int) (record % WINDOW_RECORDS) * RECORD + 1, events, at, OrderBook.EVENT_SIZE);
+    }
+
+    private static void waitUntil(long deadline) {
+        for (long left; (left = deadline - System.nanoTime()) > 0; ) {
+            if (left > 100_000) LockSupport.parkNanos(left - 50_000);
+            else Thread.onSpinWait();
+        }
+    }
+
+    /** Creates or truncates file and returns a writer for a new capture. */
+    public static Writer create(Path file) throws IOException {
+        return new Writer(FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING));
+    }
+
+    /**
+     * Appends records to a capture through a reused direct buffer; the record count in the
+     * header is written on {@link #close()}.
+     */
+    public static final class Writer implements Closeable {
+        private final FileChannel ch;
+        private final ByteBuffer out = ByteBuffer.allocateDirect(8192 * RECORD * 8).order(ByteOrder.nativeOrder());
+        private long count;
+
+        private Writer(FileChannel ch) {
+            this.ch = ch;
+            out.putLong(MAGIC).putLong(0);
+        }
+
+        /** Appends the event at events[at] for symbol. */
+        public void append(long symbol, long[] events, int at) throws IOException {
+            if (out.remaining() < RECORD * 8) flush();
+            out.putLong(symbol);
+            for (int i = 0; i < OrderBook.EVENT_SIZE; i++) out.putLong(events[at + i]);
+            count++;
+        }
+
+        private void flush() throws IOException {
+            out.flip();
+            while (out.hasRemaining()) ch.write(out);
+            out.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try (FileChannel c = ch) {
+                flush();
+                out.putLong(count).flip();
+                for (long at = 8; out.hasRemaining(); ) at += c.write(out, at);
+            }
+        }
+    }
+
+    /** Outcome of a replay; latencies are per event, as power-of-two bucket upper bounds. */
+    public static final class Report {
+        private final long[] buckets = new long[64];
+        long events;
+        long skipped;
+        long elapsedNanos;
+
+        void record(long nanos, int n) {
+            buckets[64 - Long.numberOfLeadingZeros(Math.max(nanos / n, 0))] += n;
+            events += n;
+        }
+
+        public long events() {
+            return events;
+        }
+
+        public long skipped() {
+            return skipped;
+        }
+
+        public long elapsedNanos() {
+            return elapsedNanos;
+        }
+
+        public double eventsPerSecond() {
+            return elapsedNanos == 0 ? Double.NaN : events * 1e9 / elapsedNanos;
+        }
+
+        /** Upper bound of the bucket holding the q-th quantile, 0 < q <= 1; 0 without samples. */
+        public long percentileNanos(double q) {
+            long total = 0;
+            for (long b : buckets) total += b;
+            long rank = (long) Math.ceil(q * total);
+            long seen = 0;
+            for (int b = 0; b < 64; b++) {
+                seen += buckets[b];
+                if (seen >= rank && seen > 0) return b == 0 ? 0 : b == 63 ? Long.MAX_VALUE : 1L << b;
+            }
+            return 0;
+        }
+
+        /** Whether per-event latencies were recorded; runs through a BookManager record none. */
+        public boolean hasLatencies() {
+            for (long b : buckets) {
+                if (b != 0) return true;
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            String rate = String.format("%d events (%d skipped) in %.3f s, %.0f events/s",
+                    events, skipped, elapsedNanos / 1e9, eventsPerSecond());
+            if (!hasLatencies()) return rate + ", p50 n/a, p99 n/a, p99.9 n/a";
+            return String.format("%s, p50 %d ns, p99 %d ns, p99.9 %d ns",
+                    rate, percentileNanos(0.5), percentileNanos(0.99), percentileNanos(0.999));
+        }
+    }
+
+    /**
+     * {@code replay <file> <symbols> <depth> [batch] [shards]} replays a capture, on this thread
+     * or, with shards, through a BookManager. The benchmarks module's SyntheticCapture writes
+     * synthetic ones.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length >= 4 && args[0].equals("replay")) {
+            BookReplay replay = open(Paths.get(args[1]));
+            int symbols = Integer.parseInt(args[2]);
+            int depth = Integer.parseInt(args[3]);
+            if (args.length > 5) {
+                BookManager manager = new BookManager(Integer.parseInt(args[5]), 1 << 16, 1024);
+                for (int s = 0; s < symbols; s++) manager.register(s, depth);
+                manager.start();
+                System.out.println(replay.run(manager));
+                manager.close();
+            } else {
+                for (int s = 0; s < symbols; s++) replay.bind(s, new OrderBook(depth));
+                if (args.length > 4) replay.batch(Integer.parseInt(args[4]));
+                System.out.println(replay.run());
+            }
+        } else {
+            System.err.println("usage: BookReplay replay <file> <symbols> <depth> [batch] [shards]");
+            System.exit(2);
+        }
+    }
+}
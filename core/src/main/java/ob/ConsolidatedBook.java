@@ -0,0 +1,287 @@
+package ob;
+
+import java.util.Arrays;
+
+/**
+ * Consolidated view over one OrderBook per venue. Each side keeps an indexed binary heap of
+ * the venues quoting it, keyed by their best price, fed by a {@link OrderBook.BookListener}
+ * registered on every book, so a change of any venue's top costs O(log venues). The
+ * consolidated best price is the heap root.
+ * <p>
+ * Deeper queries run a k-way merge over the venues' raw entries, seeded from the heap, and
+ * stop at the requested level. Consolidated raw levels are the venues' entries in price
+ * order, ties going to the lower venue index. Collapsed levels merge equal prices across
+ * venues, and uncrossed levels drop the collapsed levels that trade through the opposite
+ * consolidated best price, as {@link OrderBook#uncross(long[])} does for one book. As in
+ * OrderBook, uncross only applies to collapsed levels.
+ * <p>
+ * A book has one listener slot, which the consolidator takes while the venue is registered, so
+ * {@link #addVenue} rejects a book that already has a listener rather than silently replacing
+ * it; chaining would have to run the other listener at the consolidator's watch depth and
+ * without its conflation. Listeners run on the writer's thread, so every venue book must be written on the thread that
+ * uses this view. Not thread safe.
+ */
+public final class ConsolidatedBook {
+    private OrderBook[] books;
+    private OrderBook.BookListener[] listeners;
+    private int venues;
+
+    // Per side: heap of venue indices, best top first, each venue's heap position or -1,
+    // and each venue's top price.
+    private final int[][] heap = new int[2][];
+    private final int[] heapSize = new int[2];
+    private final int[][] position = new int[2][];
+    private final long[][] top = new long[2][];
+
+    // Merge walk scratch: heap of venues by the price at their cursor.
+    private int[] walk;
+    private int walkSize;
+    private long[] walkKey;
+    private int[] cursor;
+    private int walkSide;
+
+    // Level the walk stopped on.
+    private long levelPrice;
+    private long levelSize;
+    private int levelVenue;
+    private double levelNotional;
+
+    public ConsolidatedBook(int expectedVenues) {
+        int n = Math.max(4, expectedVenues);
+        books = new OrderBook[n];
+        listeners = new OrderBook.BookListener[n];
+        for (int side = 0; side < 2; side++) {
+            heap[side] = new int[n];
+            position[side] = new int[n];
+            top[side] = new long[n];
+        }
+        walk = new int[n];
+        walkKey = new long[n];
+        cursor = new int[n];
+    }
+
+    /**
+     * Registers book as the next venue, taking its listener, and returns the venue index.
+     * Throws IllegalStateException if the book already has a listener.
+     */
+    public int addVenue(OrderBook book) {
+        if (book.getListener() != null) throw new IllegalStateException("Book already has a listener");
+        if (venues == books.length) {
+            int n = venues * 2;
+            books = Arrays.copyOf(books, n);
+            listeners = Arrays.copyOf(listeners, n);
+            for (int side = 0; side < 2; side++) {
+                heap[side] = Arrays.copyOf(heap[side], n);
+                position[side] = Arrays.copyOf(position[side], n);
+                top[side] = Arrays.copyOf(top[side], n);
+            }
+            walk = new int[n];
+            walkKey = new long[n];
+            cursor = new int[n];
+        }
+        int venue = venues++;
+        books[venue] = book;
+        for (int side = 0; side < 2; side++) {
+            position[side][venue] = -1;
+            setTop(side, venue, book.getLevelPrice(side, 0, true, false));
+        }
+        listeners[venue] = new OrderBook.BookListener() {
+            @Override
+            public void onTop(long bidPrice, long bidSize, long askPrice, long askSize) {
+                setTop(0, venue, bidPrice);
+                setTop(1, venue, askPrice);
+            }
+        };
+        book.setListener(listeners[venue], 1, false);
+        return venue;
+    }
+
+    /**
+     * Unregisters venue and removes the listener it set on its book, leaving one set since in
+     * place; the index is not reused.
+     */
+    public void removeVenue(int venue) {
+        OrderBook book = books[venue];
+        if (book == null) return;
+        if (book.getListener() == listeners[venue]) book.setListener(null, 1, false);
+        books[venue] = null;
+        listeners[venue] = null;
+        setTop(0, venue, Long.MIN_VALUE);
+        setTop(1, venue, Long.MIN_VALUE);
+    }
+
+    public int getVenueCount() {
+        return venues;
+    }
+
+    public OrderBook getVenue(int venue) {
+        return books[venue];
+    }
+
+    /** Venues quoting side. */
+    public int getQuotingVenues(int side) {
+        return heapSize[side];
+    }
+
+    public long getLevelPrice(int side, int level, boolean collapse, boolean uncross) {
+        if (level == 0 && !(collapse && uncross)) return heapSize[side] == 0 ? Long.MIN_VALUE : top[side][heap[side][0]];
+        return seek(side, level, collapse, uncross) ? levelPrice : Long.MIN_VALUE;
+    }
+
+    public long getLevelSize(int side, int level, boolean collapse, boolean uncross) {
+        return seek(side, level, collapse, uncross) ? levelSize : Long.MIN_VALUE;
+    }
+
+    /** Venue of the level's entry, or of its first entry when collapsed; -1 if there is none. */
+    public int getLevelVenue(int side, int level, boolean collapse, boolean uncross) {
+        return seek(side, level, collapse, uncross) ? levelVenue : -1;
+    }
+
+    public double getMidpoint(boolean collapse, boolean uncross) {
+        OrderBook.checkUncross(collapse, uncross);
+        return OrderBook.midpoint(getLevelPrice(0, 0, collapse, uncross), getLevelPrice(1, 0, collapse, uncross));
+    }
+
+    public long getSpread(boolean collapse, boolean uncross) {
+        OrderBook.checkUncross(collapse, uncross);
+        return OrderBook.spread(getLevelPrice(0, 0, collapse, uncross), getLevelPrice(1, 0, collapse, uncross));
+    }
+
+    public double getImbalance(boolean collapse, boolean uncross) {
+        OrderBook.checkUncross(collapse, uncross);
+        return OrderBook.imbalance(getLevelSize(0, 0, collapse, uncross), getLevelSize(1, 0, collapse, uncross));
+    }
+
+    /** Size-weighted price of consolidated levels [start, end), NaN if they hold no size. */
+    public double getVWAP(int side, int start, int end, boolean collapse, boolean uncross) {
+        if (start >= end || !seek(side, start, collapse, uncross)) return Double.NaN;
+        long size = levelSize;
+        double notional = levelNotional;
+        for (int level = start + 1; level < end && next(collapse); level++) {
+            size += levelSize;
+            notional += levelNotional;
+        }
+        return size > 0 ? notional / size : Double.NaN;
+    }
+
+    private void setTop(int side, int venue, long price) {
+        int[] h = heap[side];
+        int[] pos = position[side];
+        int at = pos[venue];
+        if (price == Long.MIN_VALUE) {
+            if (at < 0) return;
+            pos[venue] = -1;
+            int last = h[--heapSize[side]];
+            if (last == venue) return;
+            h[at] = last;
+            pos[last] = at;
+            siftDown(side, siftUp(side, at));
+            return;
+        }
+        top[side][venue] = price;
+        if (at < 0) {
+            at = heapSize[side]++;
+            h[at] = venue;
+            pos[venue] = at;
+            siftUp(side, at);
+        } else {
+            siftDown(side, siftUp(side, at));
+        }
+    }
+
+    private int siftUp(int side, int at) {
+        int[] h = heap[side];
+        int[] pos = position[side];
+        long[] key = top[side];
+        int v = h[at];
+        while (at > 0) {
+            int parent = (at - 1) >>> 1;
+            if (!ahead(side, key[v], v, key[h[parent]], h[parent])) break;
+            h[at] = h[parent];
+            pos[h[at]] = at;
+            at = parent;
+        }
+        h[at] = v;
+        pos[v] = at;
+        return at;
+    }
+
+    private void siftDown(int side, int at) {
+        int[] h = heap[side];
+        int[] pos = position[side];
+        long[] key = top[side];
+        int n = heapSize[side];
+        int v = h[at];
+        for (int child; (child = 2 * at + 1) < n; at = child) {
+            if (child + 1 < n && ahead(side, key[h[child + 1]], h[child + 1], key[h[child]], h[child])) child++;
+            if (!ahead(side, key[h[child]], h[child], key[v], v)) break;
+            h[at] = h[child];
+            pos[h[at]] = at;
+        }
+        h[at] = v;
+        pos[v] = at;
+    }
+
+    private static boolean ahead(int side, long p, int venue, long q, int other) {
+        if (p != q) return side == 0 ? p > q : p < q;
+        return venue < other;
+    }
+
+    // Positions the walk on consolidated level `level` of side; false if there is none.
+    private boolean seek(int side, int level, boolean collapse, boolean uncross) {
+        int n = heapSize[side];
+        System.arraycopy(heap[side], 0, walk, 0, n);
+        for (int i = 0; i < n; i++) {
+            int v = walk[i];
+            walkKey[v] = top[side][v];
+            cursor[v] = 0;
+        }
+        walkSize = n;
+        walkSide = side;
+
+        if (collapse && uncross && heapSize[1 - side] > 0) {
+            long opposite = top[1 - side][heap[1 - side][0]];
+            while (walkSize > 0 && (side == 0 ? walkKey[walk[0]] >= opposite : walkKey[walk[0]] <= opposite)) pop();
+        }
+        for (int i = 0; i <= level; i++) {
+            if (!next(collapse)) return false;
+        }
+        return true;
+    }
+
+    // Moves to the next raw entry, or collapsed level, of the walk.
+    private boolean next(boolean collapse) {
+        if (walkSize == 0) return false;
+        levelVenue = walk[0];
+        levelPrice = walkKey[levelVenue];
+        levelSize = 0;
+        do {
+            long size = pop();
+            levelSize += size;
+        } while (collapse && walkSize > 0 && walkKey[walk[0]] == levelPrice);
+        levelNotional = (double) levelPrice * levelSize;
+        return true;
+    }
+
+    // Takes the root venue's entry, advances its cursor and returns the entry's size.
+    private long pop() {
+        int v = walk[0];
+        long[] data = books[v].getData();
+        long size = OrderBook.getLevelSize(data, walkSide, cursor[v], false, false);
+        long price = OrderBook.getLevelPrice(data, walkSide, ++cursor[v], false, false);
+        if (price != Long.MIN_VALUE) {
+            walkKey[v] = price;
+        } else {
+            v = walk[--walkSize];
+        }
+        // Sift v down from the root.
+        int at = 0;
+        for (int child; (child = 2 * at + 1) < walkSize; at = child) {
+            if (child + 1 < walkSize && ahead(walkSide, walkKey[walk[child + 1]], walk[child + 1], walkKey[walk[child]], walk[child])) child++;
+            if (!ahead(walkSide, walkKey[walk[child]], walk[child], walkKey[v], v)) break;
+            walk[at] = walk[child];
+        }
+        if (walkSize > 0) walk[at] = v;
+        return size;
+    }
+}
@@ -0,0 +1,148 @@
+package ob;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+
+/**
+ * Open-addressing (id, n) to int map with linear probing and backward-shift deletion, the
+ * two-part key counterpart of {@link LongIntMap}. Both halves of the key are stored in full,
+ * so ids that differ only in their high bits never share a slot. Zero is reserved as the empty
+ * marker, so stored values must be non-zero and {@link #get} returns 0 for a missing key.
+ * Never allocates unless it has to grow.
+ * <p>
+ * One writer; readers on other threads take the {@link #table()} once and probe only it with
+ * {@link #get(Table, long, int)}. A rehash publishes its new table with a release store, so a
+ * reader never pairs one table's mask with another's arrays. Slots are still read racily, so
+ * readers must validate what they found, e.g. under {@link OrderBook}'s seqlock.
+ */
+final class IdLevelMap {
+    private static final VarHandle TABLE;
+
+    static {
+        try {
+            TABLE = MethodHandles.lookup().findVarHandle(IdLevelMap.class, "table", Table.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /** The slot arrays and their mask, swapped as a unit on a rehash. */
+    static final class Table {
+        final long[] ids;
+        final int[] levels;
+        final int[] values;
+        final int mask;
+
+        Table(int capacity) {
+            this.ids = new long[capacity];
+            this.levels = new int[capacity];
+            this.values = new int[capacity];
+            this.mask = capacity - 1;
+        }
+    }
+
+    private Table table;
+    private int size;
+
+    IdLevelMap(int expected) {
+        this.table = new Table(Integer.highestOneBit(Math.max(4, expected) - 1) << 2);
+    }
+
+    private static int slot(long id, int n, int mask) {
+        long h = (id ^ (long) n * 0xC2B2AE3D27D4EB4FL) * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    /** The current table, for a reader on another thread. */
+    Table table() {
+        return (Table) TABLE.getAcquire(this);
+    }
+
+    /**
+     * Looks (id, n) up in t. Probes at most every slot once, so a torn view seen by a reader
+     * ends in a wrong answer for validation to reject, never in an endless loop.
+     */
+    static int get(Table t, long id, int n) {
+        int mask = t.mask;
+        long[] ids = t.ids;
+        int[] levels = t.levels;
+        int[] values = t.values;
+        for (int i = slot(id, n, mask), probes = 0; probes <= mask; i = (i + 1) & mask, probes++) {
+            int v = values[i];
+            if (v == 0 || ids[i] == id && levels[i] == n) return v;
+        }
+        return 0;
+    }
+
+    int get(long id, int n) {
+        return get(table, id, n);
+    }
+
+    void put(long id, int n, int value) {
+        Table t = table;
+        int i = slot(id, n, t.mask);
+        for (; t.values[i] != 0; i = (i + 1) & t.mask) {
+            if (t.ids[i] == id && t.levels[i] == n) {
+                t.values[i] = value;
+                return;
+            }
+        }
+        t.ids[i] = id;
+        t.levels[i] = n;
+        t.values[i] = value;
+        if (++size > (t.mask + 1) >> 1) grow();
+    }
+
+    int remove(long id, int n) {
+        Table t = table;
+        long[] ids = t.ids;
+        int[] levels = t.levels;
+        int[] values = t.values;
+        int mask = t.mask;
+        int i = slot(id, n, mask);
+        for (; ; i = (i + 1) & mask) {
+            if (values[i] == 0) return 0;
+            if (ids[i] == id && levels[i] == n) break;
+        }
+        int old = values[i];
+        size--;
+
+        // Pull later members of the probe chain back into the hole.
+        for (int j = (i + 1) & mask; values[j] != 0; j = (j + 1) & mask) {
+            int home = slot(ids[j], levels[j], mask);
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                ids[i] = ids[j];
+                levels[i] = levels[j];
+                values[i] = values[j];
+                i = j;
+            }
+        }
+        values[i] = 0;
+        return old;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        Arrays.fill(table.values, 0);
+        size = 0;
+    }
+
+    // Fills a new table off to the side and only then publishes it.
+    private void grow() {
+        Table old = table;
+        Table t = new Table((old.mask + 1) << 1);
+        for (int i = 0; i <= old.mask; i++) {
+            if (old.values[i] == 0) continue;
+            int j = slot(old.ids[i], old.levels[i], t.mask);
+            while (t.values[j] != 0) j = (j + 1) & t.mask;
+            t.ids[j] = old.ids[i];
+            t.levels[j] = old.levels[i];
+            t.values[j] = old.values[i];
+        }
+        TABLE.setRelease(this, t);
+    }
+}
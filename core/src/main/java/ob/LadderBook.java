@@ -0,0 +1,236 @@
+package ob;
+
+/**
+ * Aggregated book for instruments on a fixed tick grid: each side is a ring of level sizes
+ * addressed by tick index, {@code (price - anchor) / tick}, masked to the ring's power-of-two
+ * capacity. Setting, adding to or reading the level at a price is O(1) whatever the depth, where
+ * OrderBook binary-searches its sorted entries and shifts them to make room.
+ * <p>
+ * A side only occupies a window of ticks from its best to its worst level, and every slot
+ * outside that window is empty, so the window follows the market without copying anything;
+ * the ring only doubles when one side spans more ticks than it holds. A bitmap of occupied
+ * slots lets best and worst move on, and level walks skip, 64 empty ticks per step.
+ * <p>
+ * Queries match OrderBook's. Every level is already one price, so collapse makes no difference
+ * here, and uncross drops the levels that trade through the opposite best price. Not thread
+ * safe.
+ */
+public final class LadderBook {
+    private final long tick;
+    private final long anchor;
+    private int mask;
+
+    private final long[][] sizes = new long[2][];
+    private final long[][] occupied = new long[2][];
+    private final int[] levels = new int[2];
+    // Tick indices of each side's best and worst occupied level, valid while it has levels.
+    private final long[] best = new long[2];
+    private final long[] worst = new long[2];
+
+    /** A ladder for prices anchor + k * tick, starting with room for band ticks per side. */
+    public LadderBook(long tick, long anchor, int band) {
+        if (tick < 1) throw new IllegalArgumentException("tick must be positive");
+        this.tick = tick;
+        this.anchor = anchor;
+        int capacity = Math.max(64, Integer.highestOneBit(Math.max(1, band - 1)) << 1);
+        this.mask = capacity - 1;
+        for (int side = 0; side < 2; side++) {
+            sizes[side] = new long[capacity];
+            occupied[side] = new long[capacity >>> 6];
+        }
+    }
+
+    /** Sets the size resting at price on side; 0 removes the level. */
+    public void setLevel(int side, long price, long size) {
+        long t = tickOf(price);
+        if (size == 0) {
+            removeTick(side, t);
+            return;
+        }
+        if (size < 0) throw new IllegalArgumentException("Negative size " + size);
+        if (!present(side, t)) {
+            if (levels[side] == 0) {
+                best[side] = worst[side] = t;
+            } else {
+                long lo = Math.min(t, Math.min(best[side], worst[side]));
+                long hi = Math.max(t, Math.max(best[side], worst[side]));
+                if (hi - lo > mask) grow(hi - lo + 1);
+                if (ahead(side, t, best[side])) best[side] = t;
+                if (ahead(side, worst[side], t)) worst[side] = t;
+            }
+            int slot = (int) t & mask;
+            occupied[side][slot >>> 6] |= 1L << slot;
+            levels[side]++;
+        }
+        sizes[side][(int) t & mask] = size;
+    }
+
+    /** Adds delta, possibly negative, to the size at price; a level left at 0 or below is removed. */
+    public void addLevel(int side, long price, long delta) {
+        long size = getSizeAt(side, price) + delta;
+        setLevel(side, price, Math.max(size, 0));
+    }
+
+    public void removeLevel(int side, long price) {
+        removeTick(side, tickOf(price));
+    }
+
+    public void clear(int side) {
+        while (levels[side] > 0) removeTick(side, worst[side]);
+    }
+
+    /** Size resting at exactly price on side, 0 if there is no such level. */
+    public long getSizeAt(int side, long price) {
+        long t = tickOf(price);
+        return present(side, t) ? sizes[side][(int) t & mask] : 0;
+    }
+
+    /** Occupied levels on side. */
+    public int getDepth(int side) {
+        return levels[side];
+    }
+
+    /** Ticks per side the ring currently holds. */
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    public long getTick() {
+        return tick;
+    }
+
+    public long getLevelPrice(int side, int level, boolean collapse, boolean uncross) {
+        long t = seek(side, level, collapse && uncross);
+        return t == Long.MIN_VALUE ? Long.MIN_VALUE : priceOf(t);
+    }
+
+    public long getLevelSize(int side, int level, boolean collapse, boolean uncross) {
+        long t = seek(side, level, collapse && uncross);
+        return t == Long.MIN_VALUE ? Long.MIN_VALUE : sizes[side][(int) t & mask];
+    }
+
+    public double getMidpoint(boolean collapse, boolean uncross) {
+        OrderBook.checkUncross(collapse, uncross);
+        return OrderBook.midpoint(getLevelPrice(0, 0, collapse, uncross), getLevelPrice(1, 0, collapse, uncross));
+    }
+
+    public long getSpread(boolean collapse, boolean uncross) {
+        OrderBook.checkUncross(collapse, uncross);
+        return OrderBook.spread(getLevelPrice(0, 0, collapse, uncross), getLevelPrice(1, 0, collapse, uncross));
+    }
+
+    public double getImbalance(boolean collapse, boolean uncross) {
+        OrderBook.checkUncross(collapse, uncross);
+        return OrderBook.imbalance(getLevelSize(0, 0, collapse, uncross), getLevelSize(1, 0, collapse, uncross));
+    }
+
+    /** Size-weighted price of levels [start, end), NaN if they hold no size. */
+    public double getVWAP(int side, int start, int end, boolean collapse, boolean uncross) {
+        if (start >= end) return Double.NaN;
+        long t = seek(side, start, collapse && uncross);
+        long size = 0;
+        double notional = 0;
+        long[] s = sizes[side];
+        for (int level = start; level < end && t != Long.MIN_VALUE; level++) {
+            long z = s[(int) t & mask];
+            size += z;
+            notional += (double) priceOf(t) * z;
+            t = t == worst[side] ? Long.MIN_VALUE : scan(side, t, true);
+        }
+        return size > 0 ? notional / size : Double.NaN;
+    }
+
+    private long tickOf(long price) {
+        long offset = price - anchor;
+        if (offset % tick != 0) throw new IllegalArgumentException("Price " + price + " is off the tick grid");
+        return offset / tick;
+    }
+
+    private long priceOf(long t) {
+        return anchor + t * tick;
+    }
+
+    // Whether tick a is a better price than tick b on side.
+    private static boolean ahead(int side, long a, long b) {
+        return side == 0 ? a > b : a < b;
+    }
+
+    // Whether side has a level at tick t; slots outside its best-to-worst window are empty.
+    private boolean present(int side, long t) {
+        if (levels[side] == 0 || ahead(side, t, best[side]) || ahead(side, worst[side], t)) return false;
+        int slot = (int) t & mask;
+        return (occupied[side][slot >>> 6] & 1L << slot) != 0;
+    }
+
+    private void removeTick(int side, long t) {
+        if (!present(side, t)) return;
+        int slot = (int) t & mask;
+        occupied[side][slot >>> 6] &= ~(1L << slot);
+        sizes[side][slot] = 0;
+        if (--levels[side] == 0) return;
+        if (t == best[side]) best[side] = scan(side, t, true);
+        else if (t == worst[side]) worst[side] = scan(side, t, false);
+    }
+
+    // Tick of the level-th occupied level from the best, optionally past the crossed ones.
+    private long seek(int side, int level, boolean uncross) {
+        if (level >= levels[side]) return Long.MIN_VALUE;
+        long t = best[side];
+        if (uncross && levels[1 - side] > 0) {
+            // First tick on side that does not trade through the opposite best.
+            long limit = side == 0 ? best[1] - 1 : best[0] + 1;
+            if (ahead(side, t, limit)) {
+                if (ahead(side, worst[side], limit)) return Long.MIN_VALUE;
+                t = present(side, limit) ? limit : scan(side, limit, true);
+            }
+        }
+        for (int i = 0; i < level; i++) {
+            if (t == worst[side]) return Long.MIN_VALUE;
+            t = scan(side, t, true);
+        }
+        return t;
+    }
+
+    // Nearest occupied tick after t towards the worst level, or towards the best without
+    // worse; one must exist.
+    private long scan(int side, long t, boolean worse) {
+        long[] bits = occupied[side];
+        boolean down = worse == (side == 0);
+        t += down ? -1 : 1;
+        for (;;) {
+            int slot = (int) t & mask;
+            int bit = slot & 63;
+            if (down) {
+                long word = bits[slot >>> 6] & (-1L >>> (63 - bit));
+                if (word != 0) return t - (bit - (63 - Long.numberOfLeadingZeros(word)));
+                t -= bit + 1;
+            } else {
+                long word = bits[slot >>> 6] & (-1L << bit);
+                if (word != 0) return t + (Long.numberOfTrailingZeros(word) - bit);
+                t += 64 - bit;
+            }
+        }
+    }
+
+    // Doubles the rings until a side can span the given number of ticks, re-slotting the levels.
+    private void grow(long span) {
+        int capacity = mask + 1;
+        while (capacity < span) capacity <<= 1;
+        int newMask = capacity - 1;
+        for (int side = 0; side < 2; side++) {
+            long[] s = new long[capacity];
+            long[] bits = new long[capacity >>> 6];
+            if (levels[side] > 0) {
+                for (long t = best[side]; ; t = scan(side, t, true)) {
+                    int slot = (int) t & newMask;
+                    s[slot] = sizes[side][(int) t & mask];
+                    bits[slot >>> 6] |= 1L << slot;
+                    if (t == worst[side]) break;
+                }
+            }
+            sizes[side] = s;
+            occupied[side] = bits;
+        }
+        mask = newMask;
+    }
+}
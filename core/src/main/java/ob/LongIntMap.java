@@ -0,0 +1,90 @@
+package ob;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing long to int map with linear probing and backward-shift deletion.
+ * Zero is reserved as the empty marker, so stored values must be non-zero and
+ * {@link #get(long)} returns 0 for a missing key. Never allocates unless it has to grow.
+ */
+final class LongIntMap {
+    private long[] keys;
+    private int[] values;
+    private int mask;
+    private int size;
+
+    LongIntMap(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(4, expected) - 1) << 2;
+        this.keys = new long[capacity];
+        this.values = new int[capacity];
+        this.mask = capacity - 1;
+    }
+
+    private static int slot(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    int get(long key) {
+        for (int i = slot(key, mask); ; i = (i + 1) & mask) {
+            int v = values[i];
+            if (v == 0 || keys[i] == key) return v;
+        }
+    }
+
+    void put(long key, int value) {
+        int i = slot(key, mask);
+        for (; values[i] != 0; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                values[i] = value;
+                return;
+            }
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++size > (mask + 1) >> 1) grow();
+    }
+
+    int remove(long key) {
+        int i = slot(key, mask);
+        for (; ; i = (i + 1) & mask) {
+            if (values[i] == 0) return 0;
+            if (keys[i] == key) break;
+        }
+        int old = values[i];
+        size--;
+
+        // Pull later members of the probe chain back into the hole.
+        for (int j = (i + 1) & mask; values[j] != 0; j = (j + 1) & mask) {
+            int home = slot(keys[j], mask);
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                i = j;
+            }
+        }
+        values[i] = 0;
+        return old;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        Arrays.fill(values, 0);
+        size = 0;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[oldKeys.length << 1];
+        values = new int[oldValues.length << 1];
+        mask = keys.length - 1;
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != 0) put(oldKeys[i], oldValues[i]);
+        }
+    }
+}
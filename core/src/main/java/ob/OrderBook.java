@@ -0,0 +1,2060 @@
+package ob;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class OrderBook {
+    /** Longs per event in an {@link #applyBatch} buffer: op, side, price or level, size, ts, id. */
+    public static final int EVENT_SIZE = 6;
+    public static final int OP_ADD = 0;
+    public static final int OP_MODIFY = 1;
+    public static final int OP_REMOVE = 2;
+    public static final int OP_CLEAR_ID = 3;
+    public static final int OP_CLEAR = 4;
+    public static final int OP_EXPIRE = 5;
+
+    /** Overflow modes: what an add does once its side holds as many entries as the book's depth. */
+    public static final int OVERFLOW_THROW = 0;
+    public static final int OVERFLOW_GROW = 1;
+    public static final int OVERFLOW_SPILL = 2;
+
+    /**
+     * Format word stored in the last slot of every book array, live or realized. The slots before
+     * it hold the section offsets and depths listed below, so static readers find every section
+     * from the array itself instead of deriving it from the array length.
+     */
+    public static final long FORMAT = 0x4F42L << 16 | 3;
+
+    // Tail meta slots, relative to data.length - META; each ask slot follows its bid slot.
+    static final int META = 11;
+    static final int M_BID_COLLAPSED = 0;
+    static final int M_BID_UNCROSS = 2;
+    static final int M_BID_BASE = 4;
+    static final int M_BID_PTRS = 6;
+    static final int M_BID_SUMS = 8;
+    static final int M_FORMAT = 10;
+
+    // Adds staged by applyBatch per side before they are merged into the book.
+    private static final int MAX_STAGED = 256;
+
+    private static final VarHandle VERSION;
+    private static final VarHandle PENDING;
+    private static final VarHandle WATCH;
+
+    static {
+        try {
+            VERSION = MethodHandles.lookup().findVarHandle(OrderBook.class, "version", long.class);
+            PENDING = MethodHandles.lookup().findVarHandle(OrderBook.class, "pending", int.class);
+            WATCH = MethodHandles.lookup().findVarHandle(OrderBook.class, "watch", Watch.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /** Reads one value from a book array, e.g. {@code OrderBook::getLevelPrice}. */
+    public interface LevelQuery {
+        long apply(long[] data, int side, int level, boolean collapse, boolean uncross);
+    }
+
+    /** Reads one top-of-book value from a book array, e.g. {@code OrderBook::getMidpoint}. */
+    public interface TopQuery {
+        double apply(long[] data, boolean collapse, boolean uncross);
+    }
+
+    public interface DoubleQuery {
+        double apply(long[] data);
+    }
+
+    /**
+     * Top-of-book changes, see {@link #setListener}. Levels are collapsed, not uncrossed, and a
+     * missing level reports Long.MIN_VALUE for price and size.
+     */
+    public interface BookListener {
+        /** A watched level changed price or size. */
+        default void onLevel(int side, int level, long price, long size) { }
+
+        /** Best bid or best ask changed; follows the onLevel calls for level 0. */
+        default void onTop(long bidPrice, long bidSize, long askPrice, long askSize) { }
+
+        /** The best bid started or stopped trading through the best ask. */
+        default void onCross(boolean crossed) { }
+    }
+
+    private final int overflow;
+    private int N;
+    private long[] data;
+
+    // Seqlock stamp: odd while the single writer is mutating data, never 0.
+    private long version = 2;
+
+    private final int BID_DEPTH = 0;
+    private final int ASK_DEPTH = 1;
+    private int BID_BASE;
+    private int ASK_BASE;
+    private int BID_PTRS;
+    private int ASK_PTRS;
+    // Fenwick tree per side over the raw entries: node i, from 1, holds the (size, notional as
+    // double bits) total of entries [i - lowbit(i), i); pair 0 is unused. A size change updates
+    // O(log depth) nodes and any level range is two O(log depth) prefix walks.
+    private int BID_SUMS;
+    private int ASK_SUMS;
+    private int BID_COLLAPSED_DEPTH;
+    private int ASK_COLLAPSED_DEPTH;
+    private int BID_UNCROSS_DEPTH;
+    private int ASK_UNCROSS_DEPTH;
+
+    // Per side: (id, n) -> offset of the n-th entry carrying id, id -> entry count,
+    // and the n of every entry by position so shifted entries can be re-keyed in place.
+    private final IdLevelMap[] idLevelToOffset = new IdLevelMap[2];
+    private final LongIntMap[] idCounts = new LongIntMap[2];
+    private final int[][] idRanks = new int[2][];
+
+    private final long[][] staged = new long[2][];
+    private final int[] stagedCount = new int[2];
+    // Sides whose pointers and sums applyBatch must rebuild; set by every merge of staged adds,
+    // including one forced by a full staging run, so an event that throws later still settles.
+    private int dirty;
+
+    // OVERFLOW_SPILL only: entries behind the N in data, worst first so the best pops off the end.
+    private final long[][] spill = new long[2][];
+    private final int[] spillCount = new int[2];
+
+    // Per side: no entry, in data or the spill, has an older timestamp; exact after an expiry pass.
+    private final long[] oldest = {Long.MAX_VALUE, Long.MAX_VALUE};
+
+    private BookJournal journal;
+    private BookHistory history;
+
+    // Null unless BookMetrics.ENABLED; every use is behind that constant.
+    private final BookMetrics metrics = BookMetrics.ENABLED ? new BookMetrics() : null;
+
+    // The registered listener and its state, published whole so a consumer thread calling
+    // dispatch() never sees a listener with another registration's arrays.
+    private Watch watch;
+    // Lowest raw index per side rewritten since the last notification.
+    private final int[] touched = {Integer.MAX_VALUE, Integer.MAX_VALUE};
+    // Lowest raw index per side rewritten since the last SharedBook publish.
+    private final int[] unpublished = {0, 0};
+    // Set by the writer in conflating mode when a watched level may have changed.
+    private int pending;
+    // Events the last applyBatch got through before it returned or threw.
+    private int batchApplied;
+
+    public OrderBook(int depth) {
+        this(depth, OVERFLOW_THROW);
+    }
+
+    /**
+     * Creates a book for depth entries per side. With {@link #OVERFLOW_THROW} an add beyond that
+     * throws. {@link #OVERFLOW_GROW} moves the book into an array of at least twice the depth,
+     * so {@link #getData()} must be fetched again after mutations. {@link #OVERFLOW_SPILL} keeps
+     * the best depth entries per side in the array and the rest in a sorted spill that refills
+     * it as entries are removed; queries and {@link #realize} see the array part only, while
+     * {@link #snapshot} carries the spill too.
+     */
+    public OrderBook(int depth, int overflow) {
+        if (depth < 1) throw new IllegalArgumentException("depth must be positive");
+        if (overflow < OVERFLOW_THROW || overflow > OVERFLOW_SPILL) throw new IllegalArgumentException("Unknown overflow mode " + overflow);
+        this.overflow = overflow;
+        layout(depth);
+        for (int side = 0; side < 2; side++) {
+            idLevelToOffset[side] = new IdLevelMap(depth);
+            idCounts[side] = new LongIntMap(depth);
+            idRanks[side] = new int[depth];
+            staged[side] = new long[4 * Math.min(depth, MAX_STAGED)];
+            if (overflow == OVERFLOW_SPILL) spill[side] = new long[4 * 16];
+        }
+    }
+
+    // Allocates an empty array for depth entries per side and points the section offsets at it.
+    private void layout(int depth) {
+        this.N = depth;
+        this.data = new long[2 + 14 * depth + 4 + META];
+        this.BID_BASE = 2;
+        this.ASK_BASE = BID_BASE + 4 * depth;
+        this.BID_PTRS = ASK_BASE + 4 * depth;
+        this.ASK_PTRS = BID_PTRS + depth;
+        this.BID_SUMS = ASK_PTRS + depth;
+        this.ASK_SUMS = BID_SUMS + 2 * (depth + 1);
+        int meta = ASK_SUMS + 2 * (depth + 1);
+        this.BID_COLLAPSED_DEPTH = meta + M_BID_COLLAPSED;
+        this.ASK_COLLAPSED_DEPTH = BID_COLLAPSED_DEPTH + 1;
+        this.BID_UNCROSS_DEPTH = meta + M_BID_UNCROSS;
+        this.ASK_UNCROSS_DEPTH = BID_UNCROSS_DEPTH + 1;
+        data[meta + M_BID_BASE] = BID_BASE;
+        data[meta + M_BID_BASE + 1] = ASK_BASE;
+        data[meta + M_BID_PTRS] = BID_PTRS;
+        data[meta + M_BID_PTRS + 1] = ASK_PTRS;
+        data[meta + M_BID_SUMS] = BID_SUMS;
+        data[meta + M_BID_SUMS + 1] = ASK_SUMS;
+        data[meta + M_FORMAT] = FORMAT;
+    }
+
+    /**
+     * Moves the book into a fresh array for at least twice the depth, or minDepth if larger.
+     * Called inside a write, so readers retry and pick up the new array.
+     */
+    private void grow(int minDepth) {
+        long[] old = data;
+        layout(Math.max(minDepth, 2 * N));
+        data[0] = old[0];
+        data[1] = old[1];
+        for (int side = 0; side < 2; side++) {
+            int depth = depth(side);
+            System.arraycopy(old, entries(old, side), data, base(side), 4 * depth);
+            rebasePtrs(old, side, data, ptrs(side), base(side), (int) old[old.length - META + M_BID_COLLAPSED + side]);
+            System.arraycopy(old, sums(old, side), data, side == 0 ? BID_SUMS : ASK_SUMS, 2 * (depth + 1));
+            idRanks[side] = Arrays.copyOf(idRanks[side], N);
+            int run = 4 * Math.min(N, MAX_STAGED);
+            if (staged[side].length < run) staged[side] = Arrays.copyOf(staged[side], run);
+        }
+        System.arraycopy(old, old.length - META, data, data.length - META, 4);
+        // Bid entries keep their offsets; ask entries moved up with the larger bid section.
+        rebuildIndex(1);
+    }
+
+    public void modifyLevelById(long id, int level, int side, long newSize) {
+        long start = BookMetrics.ENABLED ? System.nanoTime() : 0;
+        try {
+            checkSide(side);
+            prepareRecord(1);
+            int off = idLevelToOffset[side].get(id, level);
+            if (off == 0) {
+                if (!modifySpilled(side, id, level, newSize)) return;
+            } else {
+                beginWrite();
+                try {
+                    resize(side, off, newSize);
+                } finally {
+                    endWrite();
+                }
+            }
+            record(OP_MODIFY, side, level, newSize, 0, id);
+            notifyChanges();
+        } finally {
+            if (BookMetrics.ENABLED) metrics.record(BookMetrics.MODIFY, start);
+        }
+    }
+
+    public void clear(int side) {
+        checkSide(side);
+        prepareRecord(1);
+        beginWrite();
+        try {
+            clearSide(side);
+            uncrossBook();
+        } finally {
+            endWrite();
+        }
+        record(OP_CLEAR, side, 0, 0, 0, 0);
+        notifyChanges();
+    }
+
+    public void addPrice(int side, long price, long size, long ts, long id) {
+        long start = BookMetrics.ENABLED ? System.nanoTime() : 0;
+        try {
+            checkSide(side);
+            if (depth(side) >= N && overflow == OVERFLOW_THROW) throw new IllegalStateException("Depth limit reached");
+            prepareRecord(1);
+
+            beginWrite();
+            try {
+                insert(side, price, size, ts, id);
+                uncrossBook();
+            } finally {
+                endWrite();
+            }
+            record(OP_ADD, side, price, size, ts, id);
+            notifyChanges();
+        } finally {
+            if (BookMetrics.ENABLED) metrics.record(BookMetrics.ADD, start);
+        }
+    }
+
+    // Inserts one entry, keeping pointers, index and sums current; a full side grows or spills.
+    private void insert(int side, long price, long size, long ts, long id) {
+        if (ts < oldest[side]) oldest[side] = ts;
+        int depth = depth(side);
+        if (depth >= N) {
+            if (overflow == OVERFLOW_GROW) {
+                grow(depth + 1);
+            } else if (insertionPoint(side, price, depth) == depth) {
+                spillAt(side, spillStart(side, price), price, size, ts, id);
+                return;
+            } else {
+                evict(side);
+                depth--;
+            }
+        }
+
+        int insertAt = insertionPoint(side, price, depth);
+        int offset = base(side) + insertAt * 4;
+
+        if (insertAt < depth) {
+            System.arraycopy(data, offset, data, offset + 4, (depth - insertAt) * 4);
+            if (BookMetrics.ENABLED) metrics.shifted((depth - insertAt) * 4);
+        }
+
+        data[offset] = price;
+        data[offset + 1] = size;
+        data[offset + 2] = ts;
+        data[offset + 3] = id;
+        setDepth(side, depth + 1);
+        insertPtr(side, offset, insertAt > 0 && data[offset - 4] == price);
+        indexInsert(side, insertAt, depth, id);
+        refreshSums(side, insertAt);
+    }
+
+    public void removeLevelById(long id, int level, int side) {
+        long start = BookMetrics.ENABLED ? System.nanoTime() : 0;
+        try {
+            checkSide(side);
+            prepareRecord(1);
+            boolean removed;
+            beginWrite();
+            try {
+                removed = removeEntry(id, level, side, true);
+                if (removed) uncrossBook();
+                else removed = removeSpilled(side, id, level);
+            } finally {
+                endWrite();
+            }
+            if (removed) record(OP_REMOVE, side, level, 0, 0, id);
+            notifyChanges();
+        } finally {
+            if (BookMetrics.ENABLED) metrics.record(BookMetrics.REMOVE, start);
+        }
+    }
+
+    public void clearById(long id, int side) {
+        long start = BookMetrics.ENABLED ? System.nanoTime() : 0;
+        try {
+            checkSide(side);
+            prepareRecord(1);
+            beginWrite();
+            try {
+                compactById(id, side);
+                rebuildPtrs(side);
+                refreshSums(side, 0);
+                uncrossBook();
+            } finally {
+                endWrite();
+            }
+            record(OP_CLEAR_ID, side, 0, 0, 0, id);
+            notifyChanges();
+        } finally {
+            if (BookMetrics.ENABLED) metrics.record(BookMetrics.CLEAR_ID, start);
+        }
+    }
+
+    /**
+     * Removes every entry on both sides, spilled ones included, whose timestamp is before
+     * cutoff, and returns how many went. Each side is compacted in one pass and its pointers
+     * and sums rebuilt once. A side whose oldest timestamp is known to be at or after cutoff is
+     * not scanned, so calling this on every tick costs O(1) until something is due.
+     */
+    public int expireBefore(long cutoff) {
+        long start = BookMetrics.ENABLED ? System.nanoTime() : 0;
+        try {
+            prepareRecord(2);
+            int bids, asks;
+            beginWrite();
+            try {
+                bids = expire(0, cutoff);
+                asks = expire(1, cutoff);
+                if (bids + asks > 0) uncrossBook();
+            } finally {
+                endWrite();
+            }
+            if (bids > 0) record(OP_EXPIRE, 0, 0, 0, cutoff, 0);
+            if (asks > 0) record(OP_EXPIRE, 1, 0, 0, cutoff, 0);
+            notifyChanges();
+            return bids + asks;
+        } finally {
+            if (BookMetrics.ENABLED) metrics.record(BookMetrics.EXPIRE, start);
+        }
+    }
+
+    /** {@link #expireBefore(long)} for one side. */
+    public int expireBefore(int side, long cutoff) {
+        long start = BookMetrics.ENABLED ? System.nanoTime() : 0;
+        try {
+            checkSide(side);
+            prepareRecord(1);
+            int removed;
+            beginWrite();
+            try {
+                removed = expire(side, cutoff);
+                if (removed > 0) uncrossBook();
+            } finally {
+                endWrite();
+            }
+            if (removed > 0) record(OP_EXPIRE, side, 0, 0, cutoff, 0);
+            notifyChanges();
+            return removed;
+        } finally {
+            if (BookMetrics.ENABLED) metrics.record(BookMetrics.EXPIRE, start);
+        }
+    }
+
+    private int expire(int side, long cutoff) {
+        int removed = compactBefore(side, cutoff);
+        if (removed > 0) {
+            rebuildPtrs(side);
+            refreshSums(side, 0);
+        }
+        return removed;
+    }
+
+    /** This book's counters, or null unless started with {@code -Dorderbook.metrics=true}. */
+    public BookMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Records every successful mutation from now on, and checkpoints after a restore; null stops
+     * journaling.
+     */
+    public void setJournal(BookJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Feeds every successful mutation and restore to history from now on; null detaches it.
+     * A history not already fed by this book is attached first, which takes a keyframe of the
+     * current state, the same as {@link BookHistory#attach}.
+     */
+    public void setHistory(BookHistory history) {
+        if (history == null || history == this.history) this.history = history;
+        else history.attach(this);
+    }
+
+    /** The history fed by this book, or null. */
+    public BookHistory getHistory() {
+        return history;
+    }
+
+    // Called back by BookHistory.attach, which takes the keyframe itself.
+    void attachHistory(BookHistory history) {
+        this.history = history;
+    }
+
+    /** The overflow mode the book was created with. */
+    public int getOverflow() {
+        return overflow;
+    }
+
+    // Lets the journal refuse a mutation of up to n records before it changes the book.
+    private void prepareRecord(int n) {
+        if (journal != null) journal.prepare(n);
+    }
+
+    private void record(int op, int side, long a, long size, long ts, long id) {
+        if (journal != null) journal.append(op, side, a, size, ts, id);
+        if (history != null) history.append(op, side, a, size, ts, id);
+    }
+
+    private void record(long[] events, int from, int n) {
+        if (journal != null) journal.append(events, from, n);
+        if (history != null) history.append(events, from, n);
+    }
+
+    /**
+     * Reports changes to the top levels of each side to listener after every mutation or batch,
+     * compared against the state at registration. Mutations that only rewrite entries below the
+     * watched levels skip the comparison. Without conflate, listener runs on the writer's thread
+     * before the mutating call returns. With conflate, the writer only flags the book and a
+     * consumer thread calls {@link #dispatch()}, seeing just the latest state. Never allocates
+     * after this call; null removes the listener. Call from the writer's thread.
+     */
+    public void setListener(BookListener listener, int levels, boolean conflate) {
+        if (listener == null) {
+            WATCH.setRelease(this, null);
+            return;
+        }
+        if (levels < 1) throw new IllegalArgumentException("levels must be positive");
+        Watch w = new Watch(listener, levels, conflate);
+        observe(w);
+        System.arraycopy(w.observed, 0, w.delivered, 0, w.delivered.length);
+        w.crossed = w.crossed(w.delivered);
+        touched[0] = touched[1] = Integer.MAX_VALUE;
+        WATCH.setRelease(this, w);
+    }
+
+    /** The listener set by {@link #setListener}, or null. */
+    public BookListener getListener() {
+        Watch w = watch;
+        return w == null ? null : w.listener;
+    }
+
+    /**
+     * Delivers the watched changes since the last dispatch to a conflating listener, reading a
+     * consistent state under the seqlock. Returns false without reading if the writer flagged
+     * nothing. Call from one consumer thread.
+     */
+    public boolean dispatch() {
+        Watch w = (Watch) WATCH.getAcquire(this);
+        if (w == null || !w.conflate || (int) PENDING.getAndSet(this, 0) == 0) return false;
+        for (;;) {
+            long stamp = tryRead();
+            if (stamp != 0) {
+                try {
+                    observe(w);
+                    if (validate(stamp)) break;
+                } catch (IndexOutOfBoundsException e) {
+                    // Torn read of a section offset; retry.
+                }
+            }
+            Thread.onSpinWait();
+        }
+        return w.deliver();
+    }
+
+    private void notifyChanges() {
+        Watch w = watch;
+        if (w == null) return;
+        boolean near = touched[0] <= levelStart(data, 0, w.levels) | touched[1] <= levelStart(data, 1, w.levels);
+        touched[0] = touched[1] = Integer.MAX_VALUE;
+        if (!near) return;
+        if (w.conflate) {
+            PENDING.setRelease(this, 1);
+            return;
+        }
+        observe(w);
+        w.deliver();
+    }
+
+    private void observe(Watch w) {
+        for (int side = 0, i = 0; side < 2; side++) {
+            for (int level = 0; level < w.levels; level++, i += 2) {
+                w.observed[i] = getLevelPrice(data, side, level, true, false);
+                w.observed[i + 1] = getLevelSize(data, side, level, true, false);
+            }
+        }
+    }
+
+    // One listener registration. Only the thread that delivers, the writer or the dispatching
+    // consumer, touches the arrays and crossed after publication.
+    private static final class Watch {
+        final BookListener listener;
+        final int levels;
+        final boolean conflate;
+        // (price, size) of each watched level, bids then asks: as last delivered, and as just read.
+        final long[] delivered;
+        final long[] observed;
+        boolean crossed;
+
+        Watch(BookListener listener, int levels, boolean conflate) {
+            this.listener = listener;
+            this.levels = levels;
+            this.conflate = conflate;
+            this.delivered = new long[4 * levels];
+            this.observed = new long[4 * levels];
+        }
+
+        boolean deliver() {
+            boolean changed = false;
+            boolean top = false;
+            for (int side = 0, i = 0; side < 2; side++) {
+                for (int level = 0; level < levels; level++, i += 2) {
+                    if (observed[i] != delivered[i] || observed[i + 1] != delivered[i + 1]) {
+                        delivered[i] = observed[i];
+                        delivered[i + 1] = observed[i + 1];
+                        listener.onLevel(side, level, delivered[i], delivered[i + 1]);
+                        top |= level == 0;
+                        changed = true;
+                    }
+                }
+            }
+            int ask = 2 * levels;
+            if (top) listener.onTop(delivered[0], delivered[1], delivered[ask], delivered[ask + 1]);
+            boolean cross = crossed(delivered);
+            if (cross != crossed) {
+                crossed = cross;
+                listener.onCross(cross);
+                changed = true;
+            }
+            return changed;
+        }
+
+        boolean crossed(long[] top) {
+            long bid = top[0];
+            long ask = top[2 * levels];
+            return bid != Long.MIN_VALUE && ask != Long.MIN_VALUE && bid >= ask;
+        }
+    }
+
+    /** Replaces the book's contents with those of another book array, live or realized. */
+    public void restore(long[] snapshot) {
+        checkFormat(snapshot);
+        int maxDepth = (int) Math.max(snapshot[0], snapshot[1]);
+        if (maxDepth > N && overflow == OVERFLOW_THROW) throw new IllegalStateException("Depth limit reached");
+        for (int side = 0; side < 2; side++) {
+            long first = entries(snapshot, side);
+            if (snapshot[side] < 0 || first < 2 || first + 4 * snapshot[side] > snapshot.length - META) {
+                throw new IllegalArgumentException("Malformed book array: side " + side + " out of bounds");
+            }
+        }
+        prepareRecord(0);
+
+        beginWrite();
+        try {
+            if (maxDepth > N && overflow == OVERFLOW_GROW) grow(maxDepth);
+            stagedCount[0] = stagedCount[1] = 0;
+            for (int side = 0; side < 2; side++) {
+                int depth = (int) snapshot[side];
+                int hot = Math.min(depth, N);
+                System.arraycopy(snapshot, entries(snapshot, side), data, base(side), 4 * hot);
+                if (spill[side] != null) {
+                    spillCount[side] = 0;
+                    for (int i = depth - 1, off = entries(snapshot, side) + i * 4; i >= hot; i--, off -= 4) {
+                        spillAt(side, spillCount[side], snapshot[off], snapshot[off + 1], snapshot[off + 2], snapshot[off + 3]);
+                    }
+                }
+                setDepth(side, hot);
+                long min = Long.MAX_VALUE;
+                for (int i = 0, off = entries(snapshot, side) + 2; i < depth; i++, off += 4) {
+                    if (snapshot[off] < min) min = snapshot[off];
+                }
+                oldest[side] = min;
+                rebuildPtrs(side);
+                rebuildIndex(side);
+                refreshSums(side, 0);
+            }
+            uncrossBook();
+        } finally {
+            endWrite();
+        }
+        if (journal != null) journal.restored();
+        if (history != null) history.restored();
+        notifyChanges();
+    }
+
+    /**
+     * Issues the event of {@link #EVENT_SIZE} longs at events[e] through the individual mutation
+     * call it stands for, laid out as for {@link #applyBatch}.
+     */
+    public void apply(long[] events, int e) {
+        int side = (int) events[e + 1];
+        switch ((int) events[e]) {
+            case OP_ADD:
+                addPrice(side, events[e + 2], events[e + 3], events[e + 4], events[e + 5]);
+                break;
+            case OP_MODIFY:
+                modifyLevelById(events[e + 5], (int) events[e + 2], side, events[e + 3]);
+                break;
+            case OP_REMOVE:
+                removeLevelById(events[e + 5], (int) events[e + 2], side);
+                break;
+            case OP_CLEAR_ID:
+                clearById(events[e + 5], side);
+                break;
+            case OP_CLEAR:
+                clear(side);
+                break;
+            case OP_EXPIRE:
+                expireBefore(side, events[e + 4]);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown op " + events[e]);
+        }
+    }
+
+    /**
+     * Applies count events of {@link #EVENT_SIZE} longs each, starting at events[from], with the
+     * same result as issuing the calls one by one. For {@link #OP_MODIFY} and {@link #OP_REMOVE}
+     * the price slot carries the level; {@link #OP_CLEAR_ID} only reads side and id,
+     * {@link #OP_CLEAR} only side, and {@link #OP_EXPIRE} side and the cutoff in the ts slot.
+     * Adds are staged and merged into their side in one pass, and collapsed pointers, Fenwick sums
+     * and uncross depths are rebuilt once per batch instead of once per event.
+     */
+    public void applyBatch(long[] events, int from, int count) {
+        dirty = 0;
+        boolean moved = false;
+        int e = from;
+        long start = BookMetrics.ENABLED ? System.nanoTime() : 0;
+        prepareRecord(count);
+        beginWrite();
+        try {
+            for (int end = from + count * EVENT_SIZE; e < end; e += EVENT_SIZE) {
+                int op = (int) events[e];
+                int side = (int) events[e + 1];
+                checkSide(side);
+                if (op == OP_ADD) {
+                    if (overflow != OVERFLOW_SPILL || depth(side) + stagedCount[side] < N) {
+                        stage(side, events[e + 2], events[e + 3], events[e + 4], events[e + 5]);
+                        continue;
+                    }
+                    // A full side in spill mode: settle it, then evict or spill like addPrice.
+                    mergeStaged(side);
+                    if ((dirty & (1 << side)) != 0) {
+                        rebuildPtrs(side);
+                        refreshSums(side, 0);
+                        dirty &= ~(1 << side);
+                    }
+                    insert(side, events[e + 2], events[e + 3], events[e + 4], events[e + 5]);
+                    moved = true;
+                    continue;
+                }
+                mergeStaged(side);
+                switch (op) {
+                    case OP_MODIFY:
+                        int off = idLevelToOffset[side].get(events[e + 5], (int) events[e + 2]);
+                        if (off == 0) {
+                            modifySpilled(side, events[e + 5], (int) events[e + 2], events[e + 3]);
+                        } else if ((dirty & (1 << side)) == 0) {
+                            resize(side, off, events[e + 3]);
+                        } else {
+                            // The side's sums are rebuilt after the batch anyway.
+                            data[off + 1] = events[e + 3];
+                        }
+                        break;
+                    case OP_REMOVE:
+                        if (removeEntry(events[e + 5], (int) events[e + 2], side, false)) dirty |= 1 << side;
+                        else removeSpilled(side, events[e + 5], (int) events[e + 2]);
+                        break;
+                    case OP_CLEAR_ID:
+                        compactById(events[e + 5], side);
+                        dirty |= 1 << side;
+                        break;
+                    case OP_CLEAR:
+                        clearSide(side);
+                        dirty |= 1 << side;
+                        break;
+                    case OP_EXPIRE:
+                        if (compactBefore(side, events[e + 4]) > 0) dirty |= 1 << side;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown op " + op);
+                }
+            }
+        } finally {
+            for (int side = 0; side < 2; side++) {
+                mergeStaged(side);
+                if ((dirty & (1 << side)) != 0) {
+                    rebuildPtrs(side);
+                    refreshSums(side, 0);
+                }
+            }
+            if (dirty != 0 || moved) uncrossBook();
+            endWrite();
+            batchApplied = (e - from) / EVENT_SIZE;
+            record(events, from, batchApplied);
+            notifyChanges();
+            if (BookMetrics.ENABLED) metrics.record(BookMetrics.BATCH, start);
+        }
+    }
+
+    // Lower bound on side's timestamps, spilled entries included.
+    long oldestTimestamp(int side) {
+        return oldest[side];
+    }
+
+    /**
+     * Events the last {@link #applyBatch} call applied: all of them, or, if it threw, those
+     * before the event that failed.
+     */
+    int batchApplied() {
+        return batchApplied;
+    }
+
+    private void clearSide(int side) {
+        touched[side] = unpublished[side] = 0;
+        spillCount[side] = 0;
+        oldest[side] = Long.MAX_VALUE;
+        setDepth(side, 0);
+        setCollapsedDepth(side, 0);
+        idLevelToOffset[side].clear();
+        idCounts[side].clear();
+    }
+
+    private boolean removeEntry(long id, int level, int side, boolean maintainPtrs) {
+        int off = idLevelToOffset[side].get(id, level);
+        if (off == 0) return false;
+
+        int depth = depth(side);
+        int i = (off - base(side)) / 4;
+        long price = data[off];
+        boolean first = i == 0 || data[off - 4] != price;
+        boolean last = i == depth - 1 || data[off + 4] != price;
+        System.arraycopy(data, off + 4, data, off, (depth - i - 1) * 4);
+        if (BookMetrics.ENABLED) metrics.shifted((depth - i - 1) * 4);
+        setDepth(side, depth - 1);
+        indexRemove(side, i, depth, id);
+        if (maintainPtrs) {
+            removePtr(side, off, first, last);
+            refreshSums(side, i);
+        }
+        if (spillCount[side] > 0) refill(side, maintainPtrs);
+        return true;
+    }
+
+    private void compactById(long id, int side) {
+        int base = base(side);
+        int depth = depth(side);
+        int write = base;
+
+        for (int i = 0, read = base; i < depth; i++, read += 4) {
+            if (data[read + 3] != id) {
+                if (write != read) {
+                    data[write]     = data[read];
+                    data[write + 1] = data[read + 1];
+                    data[write + 2] = data[read + 2];
+                    data[write + 3] = data[read + 3];
+                }
+                write += 4;
+            }
+        }
+
+        setDepth(side, (write - base) / 4);
+        if (spill[side] != null) {
+            compactSpill(id, side);
+            drainSpill(side);
+        }
+        rebuildIndex(side);
+    }
+
+    // Drops side's entries older than cutoff and returns how many; pointers and sums are stale.
+    private int compactBefore(int side, long cutoff) {
+        if (oldest[side] >= cutoff) return 0;
+        int base = base(side);
+        int depth = depth(side);
+        int write = base;
+        long min = Long.MAX_VALUE;
+
+        for (int i = 0, read = base; i < depth; i++, read += 4) {
+            long ts = data[read + 2];
+            if (ts >= cutoff) {
+                if (write != read) {
+                    data[write]     = data[read];
+                    data[write + 1] = data[read + 1];
+                    data[write + 2] = ts;
+                    data[write + 3] = data[read + 3];
+                }
+                write += 4;
+                if (ts < min) min = ts;
+            }
+        }
+
+        int kept = (write - base) / 4;
+        int removed = depth - kept;
+        setDepth(side, kept);
+        if (spill[side] != null) {
+            long[] run = spill[side];
+            int out = 0;
+            for (int read = 0, end = spillCount[side] * 4; read < end; read += 4) {
+                if (run[read + 2] >= cutoff) {
+                    if (out != read) System.arraycopy(run, read, run, out, 4);
+                    out += 4;
+                    if (run[out - 2] < min) min = run[out - 2];
+                }
+            }
+            removed += spillCount[side] - out / 4;
+            spillCount[side] = out / 4;
+            drainSpill(side);
+        }
+        oldest[side] = min;
+        if (removed > 0) rebuildIndex(side);
+        return removed;
+    }
+
+    // Moves the best spilled entries back into a side that has room, without pointers or sums.
+    private void drainSpill(int side) {
+        while (spillCount[side] > 0 && depth(side) < N) {
+            int from = --spillCount[side] * 4;
+            int to = base(side) + depth(side) * 4;
+            System.arraycopy(spill[side], from, data, to, 4);
+            setDepth(side, depth(side) + 1);
+        }
+    }
+
+    // Spill operations. Spilled entries are all at or behind the worst entry in data, kept in
+    // reverse book order; the n-th entry of an id in the book is its (n - entries in data)-th
+    // entry in the spill, counting from the end.
+
+    // Moves the worst entry of a full side onto the end of its spill, the front in book order.
+    private void evict(int side) {
+        int depth = depth(side);
+        int off = base(side) + (depth - 1) * 4;
+        long id = data[off + 3];
+        spillAt(side, spillCount[side], data[off], data[off + 1], data[off + 2], id);
+        boolean first = depth == 1 || data[off - 4] != data[off];
+        setDepth(side, depth - 1);
+        indexRemove(side, depth - 1, depth, id);
+        removePtr(side, off, first, true);
+    }
+
+    // Appends the best spilled entry to a side that has just lost one.
+    private void refill(int side, boolean maintainPtrs) {
+        int from = --spillCount[side] * 4;
+        long[] run = spill[side];
+        int depth = depth(side);
+        int off = base(side) + depth * 4;
+        System.arraycopy(run, from, data, off, 4);
+        setDepth(side, depth + 1);
+        indexInsert(side, depth, depth, run[from + 3]);
+        if (maintainPtrs) {
+            insertPtr(side, off, depth > 0 && data[off - 4] == data[off]);
+            refreshSums(side, depth);
+        }
+    }
+
+    // Spill index that puts price behind equal prices in book order.
+    private int spillStart(int side, long price) {
+        long[] run = spill[side];
+        int lo = 0, hi = spillCount[side];
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            long p = run[mid * 4];
+            if (side == 0 ? p < price : p > price) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    private void spillAt(int side, int at, long price, long size, long ts, long id) {
+        long[] run = spill[side];
+        int count = spillCount[side];
+        if (count * 4 == run.length) run = spill[side] = Arrays.copyOf(run, run.length * 2);
+        System.arraycopy(run, at * 4, run, at * 4 + 4, (count - at) * 4);
+        if (BookMetrics.ENABLED) metrics.shifted((count - at) * 4);
+        run[at * 4] = price;
+        run[at * 4 + 1] = size;
+        run[at * 4 + 2] = ts;
+        run[at * 4 + 3] = id;
+        spillCount[side] = count + 1;
+    }
+
+    // Spill offset of the level-th entry of id on side, or -1.
+    private int findSpilled(int side, long id, int level) {
+        if (spill[side] == null) return -1;
+        int n = level - idCounts[side].get(id);
+        if (n < 0) return -1;
+        long[] run = spill[side];
+        for (int off = (spillCount[side] - 1) * 4; off >= 0; off -= 4) {
+            if (run[off + 3] == id && n-- == 0) {
+                if (BookMetrics.ENABLED) metrics.scanned(spillCount[side] - off / 4);
+                return off;
+            }
+        }
+        if (BookMetrics.ENABLED) metrics.scanned(spillCount[side]);
+        return -1;
+    }
+
+    private boolean modifySpilled(int side, long id, int level, long newSize) {
+        int off = findSpilled(side, id, level);
+        if (off < 0) return false;
+        spill[side][off + 1] = newSize;
+        return true;
+    }
+
+    private boolean removeSpilled(int side, long id, int level) {
+        int off = findSpilled(side, id, level);
+        if (off < 0) return false;
+        long[] run = spill[side];
+        int count = --spillCount[side];
+        System.arraycopy(run, off + 4, run, off, count * 4 - off);
+        if (BookMetrics.ENABLED) metrics.shifted(count * 4 - off);
+        return true;
+    }
+
+    private void compactSpill(long id, int side) {
+        long[] run = spill[side];
+        int write = 0;
+        for (int read = 0, end = spillCount[side] * 4; read < end; read += 4) {
+            if (run[read + 3] != id) {
+                if (write != read) System.arraycopy(run, read, run, write, 4);
+                write += 4;
+            }
+        }
+        spillCount[side] = write / 4;
+    }
+
+    /** Entries of side held in the spill behind the array, always 0 unless {@link #OVERFLOW_SPILL}. */
+    public int getSpillDepth(int side) {
+        return spillCount[side];
+    }
+
+    // Inserts into the side's staging run, kept sorted like the book itself.
+    private void stage(int side, long price, long size, long ts, long id) {
+        if (ts < oldest[side]) oldest[side] = ts;
+        long[] run = staged[side];
+        int count = stagedCount[side];
+        if (count * 4 == run.length) {
+            mergeStaged(side);
+            count = 0;
+        }
+        if (depth(side) + count >= N) {
+            if (overflow != OVERFLOW_GROW) throw new IllegalStateException("Depth limit reached");
+            grow(depth(side) + count + 1);
+            run = staged[side];
+        }
+
+        int lo = 0, hi = count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            long p = run[mid * 4];
+            if (side == 0 ? p >= price : p <= price) lo = mid + 1;
+            else hi = mid;
+        }
+        System.arraycopy(run, lo * 4, run, lo * 4 + 4, (count - lo) * 4);
+        if (BookMetrics.ENABLED) metrics.shifted((count - lo) * 4);
+        run[lo * 4] = price;
+        run[lo * 4 + 1] = size;
+        run[lo * 4 + 2] = ts;
+        run[lo * 4 + 3] = id;
+        stagedCount[side] = count + 1;
+    }
+
+    // Merges staged adds into the side from the back; on equal prices resting entries stay ahead.
+    // Marks the side dirty, as its pointers and sums no longer match the entries.
+    private void mergeStaged(int side) {
+        int count = stagedCount[side];
+        if (count == 0) return;
+
+        long[] run = staged[side];
+        int base = base(side);
+        int depth = depth(side);
+        int read = base + (depth - 1) * 4;
+        int write = base + (depth + count - 1) * 4;
+        for (int j = (count - 1) * 4; j >= 0; write -= 4) {
+            long p = read >= base ? data[read] : 0;
+            if (read >= base && (side == 0 ? p < run[j] : p > run[j])) {
+                data[write]     = p;
+                data[write + 1] = data[read + 1];
+                data[write + 2] = data[read + 2];
+                data[write + 3] = data[read + 3];
+                read -= 4;
+            } else {
+                data[write]     = run[j];
+                data[write + 1] = run[j + 1];
+                data[write + 2] = run[j + 2];
+                data[write + 3] = run[j + 3];
+                j -= 4;
+            }
+        }
+
+        setDepth(side, depth + count);
+        stagedCount[side] = 0;
+        dirty |= 1 << side;
+        rebuildIndex(side);
+    }
+
+    /**
+     * Returns a compact copy of a book array holding only live entries and pointers. It keeps
+     * the tail meta block, with offsets rewritten for the compact sections, so every static
+     * reader works on it directly.
+     */
+    public static long[] realize(long[] src) {
+        checkFormat(src);
+        int bidDepth = (int) src[0];
+        int askDepth = (int) src[1];
+        int srcMeta = src.length - META;
+        int bidLevels = (int) src[srcMeta + M_BID_COLLAPSED];
+        int askLevels = (int) src[srcMeta + M_BID_COLLAPSED + 1];
+
+        int bidBase = 2;
+        int askBase = bidBase + 4 * bidDepth;
+        int bidPtrs = askBase + 4 * askDepth;
+        int askPtrs = bidPtrs + bidLevels;
+        int bidSums = askPtrs + askLevels;
+        int askSums = bidSums + 2 * (bidDepth + 1);
+        int meta = askSums + 2 * (askDepth + 1);
+        long[] dst = new long[meta + META];
+
+        dst[0] = bidDepth;
+        dst[1] = askDepth;
+        System.arraycopy(src, entries(src, 0), dst, bidBase, 4 * bidDepth);
+        System.arraycopy(src, entries(src, 1), dst, askBase, 4 * askDepth);
+        rebasePtrs(src, 0, dst, bidPtrs, bidBase, bidLevels);
+        rebasePtrs(src, 1, dst, askPtrs, askBase, askLevels);
+        System.arraycopy(src, sums(src, 0), dst, bidSums, 2 * (bidDepth + 1));
+        System.arraycopy(src, sums(src, 1), dst, askSums, 2 * (askDepth + 1));
+        System.arraycopy(src, srcMeta, dst, meta, 4);
+        setSections(dst, meta, bidBase, askBase, bidPtrs, askPtrs, bidSums, askSums);
+        return dst;
+    }
+
+    /**
+     * Returns a {@link #realize} image of this book that also holds its spilled entries, behind
+     * the array entries of their side, so {@link #restore} on a book of the same depth puts them
+     * back in the spill. Without a spill it equals realize(getData()). Call from the writer.
+     */
+    public long[] snapshot() {
+        long[] bids = new long[4 * entryCount(0)];
+        long[] asks = new long[4 * entryCount(1)];
+        return image(bids, copyEntries(0, bids), asks, copyEntries(1, asks));
+    }
+
+    // Entries of side, array and spill.
+    int entryCount(int side) {
+        return depth(side) + spillCount[side];
+    }
+
+    // Writes side's entries, array then spill, in book order from dst[0] and returns how many.
+    int copyEntries(int side, long[] dst) {
+        int depth = depth(side);
+        System.arraycopy(data, base(side), dst, 0, 4 * depth);
+        long[] run = spill[side];
+        for (int i = spillCount[side] - 1, to = 4 * depth; i >= 0; i--, to += 4) {
+            System.arraycopy(run, 4 * i, dst, to, 4);
+        }
+        return depth + spillCount[side];
+    }
+
+    // Builds the realize form of two sorted entry lists, with pointers, sums and uncross depths.
+    static long[] image(long[] bids, int bidDepth, long[] asks, int askDepth) {
+        int bidLevels = countLevels(bids, bidDepth);
+        int askLevels = countLevels(asks, askDepth);
+        int bidBase = 2;
+        int askBase = bidBase + 4 * bidDepth;
+        int bidPtrs = askBase + 4 * askDepth;
+        int askPtrs = bidPtrs + bidLevels;
+        int bidSums = askPtrs + askLevels;
+        int askSums = bidSums + 2 * (bidDepth + 1);
+        int meta = askSums + 2 * (askDepth + 1);
+        long[] dst = new long[meta + META];
+
+        dst[0] = bidDepth;
+        dst[1] = askDepth;
+        System.arraycopy(bids, 0, dst, bidBase, 4 * bidDepth);
+        System.arraycopy(asks, 0, dst, askBase, 4 * askDepth);
+        setSections(dst, meta, bidBase, askBase, bidPtrs, askPtrs, bidSums, askSums);
+        for (int side = 0; side < 2; side++) {
+            int base = side == 0 ? bidBase : askBase;
+            int count = 0;
+            for (int i = 0, off = base, ptrs = side == 0 ? bidPtrs : askPtrs; i < dst[side]; i++, off += 4) {
+                if (i == 0 || dst[off] != dst[off - 4]) dst[ptrs + count++] = off;
+            }
+            dst[meta + M_BID_COLLAPSED + side] = count;
+            sumEntries(dst, base, side == 0 ? bidSums : askSums, (int) dst[side], 0);
+        }
+        uncross(dst);
+        return dst;
+    }
+
+    private static int countLevels(long[] entries, int depth) {
+        int count = 0;
+        for (int i = 0, off = 0; i < depth; i++, off += 4) {
+            if (i == 0 || entries[off] != entries[off - 4]) count++;
+        }
+        return count;
+    }
+
+    private static void rebasePtrs(long[] src, int side, long[] dst, int dstPtrs, int dstBase, int count) {
+        int srcPtrs = pointers(src, side);
+        long shift = dstBase - entries(src, side);
+        for (int i = 0; i < count; i++) dst[dstPtrs + i] = src[srcPtrs + i] + shift;
+    }
+
+    /**
+     * Writes a book array, live or realized, to out in a compact wire form: the format word,
+     * depths and level counts, then every entry as zigzag varints of price and timestamp deltas
+     * against the previous entry, size and id. Returns the number of bytes written.
+     */
+    public static int encode(long[] data, ByteBuffer out) {
+        checkFormat(data);
+        int start = out.position();
+        int meta = data.length - META;
+        putVarLong(out, FORMAT);
+        for (int side = 0; side < 2; side++) {
+            putVarLong(out, data[side]);
+            putVarLong(out, data[meta + M_BID_COLLAPSED + side]);
+        }
+        for (int side = 0; side < 2; side++) {
+            long prevPrice = 0;
+            long prevTs = 0;
+            for (int i = 0, off = entries(data, side); i < data[side]; i++, off += 4) {
+                putVarLong(out, zigzag(data[off] - prevPrice));
+                putVarLong(out, zigzag(data[off + 1]));
+                putVarLong(out, zigzag(data[off + 2] - prevTs));
+                putVarLong(out, zigzag(data[off + 3]));
+                prevPrice = data[off];
+                prevTs = data[off + 2];
+            }
+        }
+        return out.position() - start;
+    }
+
+    /** Reads one book written by {@link #encode} and returns it in the {@link #realize} form. */
+    public static long[] decode(ByteBuffer in) {
+        if (getVarLong(in) != FORMAT) throw new IllegalArgumentException("Not an encoded book of format " + Long.toHexString(FORMAT));
+        int bidDepth = (int) getVarLong(in);
+        int bidLevels = (int) getVarLong(in);
+        int askDepth = (int) getVarLong(in);
+        int askLevels = (int) getVarLong(in);
+
+        int bidBase = 2;
+        int askBase = bidBase + 4 * bidDepth;
+        int bidPtrs = askBase + 4 * askDepth;
+        int askPtrs = bidPtrs + bidLevels;
+        int bidSums = askPtrs + askLevels;
+        int askSums = bidSums + 2 * (bidDepth + 1);
+        int meta = askSums + 2 * (askDepth + 1);
+        long[] dst = new long[meta + META];
+        dst[0] = bidDepth;
+        dst[1] = askDepth;
+        setSections(dst, meta, bidBase, askBase, bidPtrs, askPtrs, bidSums, askSums);
+
+        for (int side = 0; side < 2; side++) {
+            int ptrs = side == 0 ? bidPtrs : askPtrs;
+            int count = 0;
+            long price = 0;
+            long ts = 0;
+            for (int i = 0, off = side == 0 ? bidBase : askBase; i < dst[side]; i++, off += 4) {
+                long delta = unzigzag(getVarLong(in));
+                price += delta;
+                dst[off] = price;
+                dst[off + 1] = unzigzag(getVarLong(in));
+                ts += unzigzag(getVarLong(in));
+                dst[off + 2] = ts;
+                dst[off + 3] = unzigzag(getVarLong(in));
+                if (i == 0 || delta != 0) dst[ptrs + count++] = off;
+            }
+            dst[meta + M_BID_COLLAPSED + side] = count;
+            sumEntries(dst, side == 0 ? bidBase : askBase, side == 0 ? bidSums : askSums, (int) dst[side], 0);
+        }
+        uncross(dst);
+        return dst;
+    }
+
+    private static void setSections(long[] dst, int meta, int bidBase, int askBase, int bidPtrs, int askPtrs,
+                                    int bidSums, int askSums) {
+        dst[meta + M_BID_BASE] = bidBase;
+        dst[meta + M_BID_BASE + 1] = askBase;
+        dst[meta + M_BID_PTRS] = bidPtrs;
+        dst[meta + M_BID_PTRS + 1] = askPtrs;
+        dst[meta + M_BID_SUMS] = bidSums;
+        dst[meta + M_BID_SUMS + 1] = askSums;
+        dst[meta + M_FORMAT] = FORMAT;
+    }
+
+    // Rebuilds the Fenwick nodes covering entries [from, depth). Each node adds its children to
+    // its own entry; children before from are still valid, and the others were rebuilt just
+    // before it. Nodes have one child on average, so this is linear in depth - from.
+    private static void sumEntries(long[] data, int base, int sums, int depth, int from) {
+        for (int i = from + 1, off = base + from * 4; i <= depth; i++, off += 4) {
+            long size = data[off + 1];
+            double value = data[off] * data[off + 1];
+            for (int k = 1, low = i & -i; k < low; k <<= 1) {
+                int child = sums + 2 * (i - k);
+                size += data[child];
+                value += Double.longBitsToDouble(data[child + 1]);
+            }
+            data[sums + 2 * i] = size;
+            data[sums + 2 * i + 1] = Double.doubleToRawLongBits(value);
+        }
+    }
+
+    // Total size of raw entries [0, n) from a Fenwick sums section.
+    static long prefixSize(long[] data, int sums, int n) {
+        long size = 0;
+        for (int i = n; i > 0; i -= i & -i) size += data[sums + 2 * i];
+        return size;
+    }
+
+    static double prefixValue(long[] data, int sums, int n) {
+        double value = 0;
+        for (int i = n; i > 0; i -= i & -i) value += Double.longBitsToDouble(data[sums + 2 * i + 1]);
+        return value;
+    }
+
+    private static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private static long unzigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static void putVarLong(ByteBuffer out, long v) {
+        while ((v & ~0x7FL) != 0) {
+            out.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.put((byte) v);
+    }
+
+    private static long getVarLong(ByteBuffer in) {
+        long v = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            v |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return v;
+        }
+    }
+
+    /** True if data carries the current book format word. */
+    public static boolean isBook(long[] data) {
+        return data.length >= 2 + META && data[data.length - META + M_FORMAT] == FORMAT;
+    }
+
+    private static void checkFormat(long[] data) {
+        if (!isBook(data)) throw new IllegalArgumentException("Not a book array of format " + Long.toHexString(FORMAT));
+    }
+
+    // Offset of a side's first entry, read from the tail meta block.
+    private static int entries(long[] data, int side) {
+        return (int) data[data.length - META + M_BID_BASE + side];
+    }
+
+    private static int pointers(long[] data, int side) {
+        return (int) data[data.length - META + M_BID_PTRS + side];
+    }
+
+    private static int sums(long[] data, int side) {
+        return (int) data[data.length - META + M_BID_SUMS + side];
+    }
+
+    // Raw index of a collapsed level's first entry; the collapsed depth maps to the raw depth.
+    private static int levelStart(long[] data, int side, int level) {
+        if (level >= (int) data[data.length - META + M_BID_COLLAPSED + side]) return (int) data[side];
+        return ((int) data[pointers(data, side) + level] - entries(data, side)) >> 2;
+    }
+
+    private void rebuildPtrs(int side) {
+        long start = BookMetrics.ENABLED ? System.nanoTime() : 0;
+        int base = base(side);
+        int ptrs = ptrs(side);
+        int depth = depth(side);
+
+        int count = 0;
+        long prevPrice = Long.MIN_VALUE;
+        for (int i = 0, offset = base; i < depth; i++, offset += 4) {
+            long price = data[offset];
+            if (price != prevPrice) {
+                data[ptrs + count++] = offset;
+                prevPrice = price;
+            }
+        }
+        setCollapsedDepth(side, count);
+        if (BookMetrics.ENABLED) metrics.record(BookMetrics.REBUILD_PTRS, start);
+    }
+
+    private void uncrossBook() {
+        long start = BookMetrics.ENABLED ? System.nanoTime() : 0;
+        uncross(data);
+        if (BookMetrics.ENABLED) metrics.record(BookMetrics.UNCROSS, start);
+    }
+
+    // First index whose price is strictly worse than price, so equal prices keep arrival order.
+    private int insertionPoint(int side, long price, int depth) {
+        int base = base(side);
+        int lo = 0, hi = depth;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            long p = data[base + mid * 4];
+            if (side == 0 ? p >= price : p <= price) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    // Index of the first collapsed pointer at or after offset.
+    private int ptrIndex(int side, int offset) {
+        int ptrs = ptrs(side);
+        int lo = 0, hi = collapsedDepth(side);
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (data[ptrs + mid] < offset) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    // Called after an entry was inserted at offset and the tail shifted up by one entry.
+    private void insertPtr(int side, int offset, boolean joinsLevel) {
+        int ptrs = ptrs(side);
+        int count = collapsedDepth(side);
+        int k = ptrIndex(side, offset);
+        if (!joinsLevel) {
+            System.arraycopy(data, ptrs + k, data, ptrs + k + 1, count - k);
+            if (BookMetrics.ENABLED) metrics.shifted(count - k);
+            data[ptrs + k++] = offset;
+            setCollapsedDepth(side, ++count);
+        }
+        for (int i = k; i < count; i++) data[ptrs + i] += 4;
+    }
+
+    // Called after the entry at offset was removed and the tail shifted down by one entry.
+    private void removePtr(int side, int offset, boolean first, boolean last) {
+        int ptrs = ptrs(side);
+        int count = collapsedDepth(side);
+        int k = ptrIndex(side, offset);
+        if (first && last) {
+            System.arraycopy(data, ptrs + k + 1, data, ptrs + k, count - k - 1);
+            if (BookMetrics.ENABLED) metrics.shifted(count - k - 1);
+            setCollapsedDepth(side, --count);
+        } else if (first) {
+            k++;
+        }
+        for (int i = k; i < count; i++) data[ptrs + i] -= 4;
+    }
+
+    // Called after the entry at position at was inserted into a side of oldDepth entries.
+    private void indexInsert(int side, int at, int oldDepth, long id) {
+        IdLevelMap index = idLevelToOffset[side];
+        int[] ranks = idRanks[side];
+        int base = base(side);
+        int offset = base + at * 4;
+
+        // Entries of this id are in book order, so their offsets are sorted by n.
+        int count = idCounts[side].get(id);
+        int lo = 0, hi = count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (index.get(id, mid) < offset) lo = mid + 1;
+            else hi = mid;
+        }
+
+        System.arraycopy(ranks, at, ranks, at + 1, oldDepth - at);
+        for (int i = at + 1, off = offset + 4; i <= oldDepth; i++, off += 4) {
+            long eid = data[off + 3];
+            index.put(eid, eid == id ? ++ranks[i] : ranks[i], off);
+        }
+        ranks[at] = lo;
+        index.put(id, lo, offset);
+        idCounts[side].put(id, count + 1);
+    }
+
+    // Called after the entry at position at was removed from a side of oldDepth entries.
+    private void indexRemove(int side, int at, int oldDepth, long id) {
+        IdLevelMap index = idLevelToOffset[side];
+        int[] ranks = idRanks[side];
+
+        System.arraycopy(ranks, at + 1, ranks, at, oldDepth - at - 1);
+        for (int i = at, off = base(side) + at * 4; i < oldDepth - 1; i++, off += 4) {
+            long eid = data[off + 3];
+            index.put(eid, eid == id ? --ranks[i] : ranks[i], off);
+        }
+        int count = idCounts[side].get(id);
+        index.remove(id, count - 1);
+        if (count == 1) idCounts[side].remove(id);
+        else idCounts[side].put(id, count - 1);
+    }
+
+    private void rebuildIndex(int side) {
+        IdLevelMap index = idLevelToOffset[side];
+        LongIntMap counts = idCounts[side];
+        int[] ranks = idRanks[side];
+        index.clear();
+        counts.clear();
+
+        int depth = depth(side);
+        for (int i = 0, off = base(side); i < depth; i++, off += 4) {
+            long id = data[off + 3];
+            int n = counts.get(id);
+            ranks[i] = n;
+            index.put(id, n, off);
+            counts.put(id, n + 1);
+        }
+    }
+
+    // Lowest raw index rewritten on side since the last call, which resets it; for SharedBook.
+    int takeUnpublished(int side) {
+        int i = unpublished[side];
+        unpublished[side] = Integer.MAX_VALUE;
+        return i;
+    }
+
+    private int depth(int side) {
+        return (int) data[side == 0 ? BID_DEPTH : ASK_DEPTH];
+    }
+
+    private void setDepth(int side, int d) {
+        data[side == 0 ? BID_DEPTH : ASK_DEPTH] = d;
+    }
+
+    private int base(int side) {
+        return side == 0 ? BID_BASE : ASK_BASE;
+    }
+
+    private int ptrs(int side) {
+        return side == 0 ? BID_PTRS : ASK_PTRS;
+    }
+
+    // Sets the size of the entry at off and adds the change along its Fenwick path.
+    private void resize(int side, int off, long newSize) {
+        int i = (off - base(side)) / 4;
+        if (i < touched[side]) touched[side] = i;
+        if (i < unpublished[side]) unpublished[side] = i;
+        long price = data[off];
+        long sizeDelta = newSize - data[off + 1];
+        double valueDelta = (double) (price * newSize) - (double) (price * data[off + 1]);
+        data[off + 1] = newSize;
+        int sums = side == 0 ? BID_SUMS : ASK_SUMS;
+        for (int j = i + 1, depth = depth(side); j <= depth; j += j & -j) {
+            int node = sums + 2 * j;
+            data[node] += sizeDelta;
+            data[node + 1] = Double.doubleToRawLongBits(Double.longBitsToDouble(data[node + 1]) + valueDelta);
+        }
+    }
+
+    private void refreshSums(int side, int from) {
+        if (from < touched[side]) touched[side] = from;
+        if (from < unpublished[side]) unpublished[side] = from;
+        sumEntries(data, base(side), side == 0 ? BID_SUMS : ASK_SUMS, depth(side), from);
+    }
+
+    private int collapsedDepth(int side) {
+        return (int) data[side == 0 ? BID_COLLAPSED_DEPTH : ASK_COLLAPSED_DEPTH];
+    }
+
+    private void setCollapsedDepth(int side, int d) {
+        data[side == 0 ? BID_COLLAPSED_DEPTH : ASK_COLLAPSED_DEPTH] = d;
+    }
+
+    /**
+     * Recomputes the uncrossed depths of a book array. Both collapsed sides are sorted, so a
+     * side's uncrossed view is the suffix of its collapsed levels that does not trade through
+     * the opposite best price; only the length of that suffix is stored. Books keep this up to
+     * date on every mutation, so calling it is only needed for arrays edited by hand.
+     */
+    public static void uncross(long[] data) {
+        int meta = data.length - META;
+        int bidPtrs = (int) data[meta + M_BID_PTRS];
+        int askPtrs = (int) data[meta + M_BID_PTRS + 1];
+        int bidCount = (int) data[meta];
+        int askCount = (int) data[meta + 1];
+
+        if (bidCount == 0 || askCount == 0) {
+            data[meta + 2] = bidCount;
+            data[meta + 3] = askCount;
+            return;
+        }
+        long bestBid = data[(int) data[bidPtrs]];
+        long bestAsk = data[(int) data[askPtrs]];
+        data[meta + 2] = bidCount - crossedLevels(data, 0, bidPtrs, bidCount, bestAsk);
+        data[meta + 3] = askCount - crossedLevels(data, 1, askPtrs, askCount, bestBid);
+    }
+
+    // Number of leading collapsed levels priced through the opposite best price.
+    private static int crossedLevels(long[] data, int side, int ptrs, int count, long opposite) {
+        int lo = 0, hi = count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            long p = data[(int) data[ptrs + mid]];
+            if (side == 0 ? p >= opposite : p <= opposite) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    // Collapsed level backing a collapsed or uncrossed level.
+    private static int collapsedLevel(long[] data, int side, int level, boolean uncross) {
+        if (!uncross) return level;
+        int meta = data.length - META;
+        return level + (int) (data[meta + M_BID_COLLAPSED + side] - data[meta + M_BID_UNCROSS + side]);
+    }
+
+    public long getLevelPrice(int side, int level, boolean collapse, boolean uncross) {
+        return getLevelPrice(data, side, level, collapse, uncross);
+    }
+
+    public long getLevelSize(int side, int level, boolean collapse, boolean uncross) {
+        return getLevelSize(data, side, level, collapse, uncross);
+    }
+
+    public long getLevelTimestamp(int side, int level, boolean collapse, boolean uncross) {
+        return getLevelTimestamp(data, side, level, collapse, uncross);
+    }
+
+    public long getLevelId(int side, int level, boolean collapse, boolean uncross) {
+        return getLevelId(data, side, level, collapse, uncross);
+    }
+
+    public double getMidpoint() {
+        return getMidpoint(data, false, false);
+    }
+
+    public long getSpread() {
+        return getSpread(data, false, false);
+    }
+
+    public double getVWAP(int side) {
+        return getVWAP(data, side, false);
+    }
+
+    public double getMidpoint(boolean collapse, boolean uncross) {
+        return getMidpoint(data, collapse, uncross);
+    }
+
+    public double getMidpoint(int start, int end, boolean collapse, boolean uncross) {
+        return getMidpoint(data, start, end, collapse, uncross);
+    }
+
+    public long getSpread(boolean collapse, boolean uncross) {
+        return getSpread(data, collapse, uncross);
+    }
+
+    public double getSpread(int start, int end, boolean collapse, boolean uncross) {
+        return getSpread(data, start, end, collapse, uncross);
+    }
+
+    public double getVWAP(int side, boolean uncross) {
+        return getVWAP(data, side, uncross);
+    }
+
+    public double getVWAP(int side, int start, int end, boolean collapse, boolean uncross) {
+        return getVWAP(data, side, start, end, collapse, uncross);
+    }
+
+    public double getImbalance() {
+        return getImbalance(data, false, false);
+    }
+
+    public double getImbalance(boolean collapse) {
+        return getImbalance(data, collapse, false);
+    }
+
+    public double getImbalance(boolean collapse, boolean uncross) {
+        return getImbalance(data, collapse, uncross);
+    }
+
+    /**
+     * Returns the live book array. Readers on other threads must bracket their reads with
+     * {@link #tryRead()} and {@link #validate(long)}, or use one of the {@code read} methods.
+     */
+    public long[] getData() {
+        return data;
+    }
+
+    private static void checkSide(int side) {
+        if (side != 0 && side != 1) throw new IllegalArgumentException("Side must be 0 or 1: " + side);
+    }
+
+    private void beginWrite() {
+        VERSION.setOpaque(this, version + 1);
+        VarHandle.storeStoreFence();
+    }
+
+    private void endWrite() {
+        VERSION.setRelease(this, version + 1);
+    }
+
+    /**
+     * Starts an optimistic read of {@link #getData()}. Returns a stamp to pass to
+     * {@link #validate(long)} once the reads are done, or 0 if a write is in progress.
+     */
+    public long tryRead() {
+        long v = (long) VERSION.getAcquire(this);
+        return (v & 1) == 0 ? v : 0;
+    }
+
+    /** True if no write has started since stamp was obtained, so the values read are consistent. */
+    public boolean validate(long stamp) {
+        VarHandle.loadLoadFence();
+        return stamp != 0 && (long) VERSION.getOpaque(this) == stamp;
+    }
+
+    /** Runs query until it completes against a consistent view; a torn view is simply retried. */
+    public long read(LevelQuery query, int side, int level, boolean collapse, boolean uncross) {
+        return read(query, null, null, side, level, collapse, uncross);
+    }
+
+    public double read(TopQuery query, boolean collapse, boolean uncross) {
+        return Double.longBitsToDouble(read(null, query, null, 0, 0, collapse, uncross));
+    }
+
+    public double read(DoubleQuery query) {
+        return Double.longBitsToDouble(read(null, null, query, 0, 0, false, false));
+    }
+
+    // The retry loop behind the read overloads: runs whichever query is given, double results
+    // carried as their bits, so no overload needs a capturing lambda.
+    private long read(LevelQuery levelQuery, TopQuery topQuery, DoubleQuery doubleQuery, int side, int level, boolean collapse, boolean uncross) {
+        for (;;) {
+            long stamp = tryRead();
+            if (stamp != 0) {
+                try {
+                    long[] data = this.data;
+                    long result = levelQuery != null ? levelQuery.apply(data, side, level, collapse, uncross)
+                            : topQuery != null ? Double.doubleToRawLongBits(topQuery.apply(data, collapse, uncross))
+                            : Double.doubleToRawLongBits(doubleQuery.apply(data));
+                    if (validate(stamp)) return result;
+                } catch (IndexOutOfBoundsException torn) {
+                    // a half-written pointer; retry
+                }
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * Copies a consistent image of the book into dst, which must be getData().length long; a
+     * growable book that has grown since dst was sized throws IllegalArgumentException.
+     */
+    public long copyTo(long[] dst) {
+        for (;;) {
+            long stamp = tryRead();
+            if (stamp != 0) {
+                long[] src = data;
+                if (src.length != dst.length) {
+                    if (validate(stamp)) throw new IllegalArgumentException("Book array is " + src.length + " longs");
+                    continue;
+                }
+                System.arraycopy(src, 0, dst, 0, src.length);
+                if (validate(stamp)) return stamp;
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    private static long sumCollapsedSizeAt(long[] data, int side, int level, boolean uncross) {
+        int collapsed = collapsedLevel(data, side, level, uncross);
+        int sums = sums(data, side);
+        return prefixSize(data, sums, levelStart(data, side, collapsed + 1)) - prefixSize(data, sums, levelStart(data, side, collapsed));
+    }
+
+    public static long getLevelPrice(long[] data, int side, int level, boolean collapse, boolean uncross) {
+        if (!hasLevel(data, side, level, collapse, uncross)) return Long.MIN_VALUE;
+        if (collapse) {
+            int ptr = (int) data[pointers(data, side) + collapsedLevel(data, side, level, uncross)];
+            return data[ptr];
+        } else {
+            return data[entries(data, side) + level * 4];
+        }
+    }
+
+    public static long getLevelSize(long[] data, int side, int level, boolean collapse, boolean uncross) {
+        if (!hasLevel(data, side, level, collapse, uncross)) return Long.MIN_VALUE;
+        if (collapse) return sumCollapsedSizeAt(data, side, level, uncross);
+        return data[entries(data, side) + level * 4 + 1];
+    }
+
+    public static long getLevelTimestamp(long[] data, int side, int level, boolean collapse, boolean uncross) {
+        if (!hasLevel(data, side, level, collapse, uncross)) return Long.MIN_VALUE;
+        if (collapse) return data[(int) data[pointers(data, side) + collapsedLevel(data, side, level, uncross)] + 2];
+        return data[entries(data, side) + level * 4 + 2];
+    }
+
+    public long getLevelPriceForIds(long[] ids, int level, int side, boolean collapsed) {
+        return getLevelFieldIndexed(ids, null, level, side, collapsed, 0, false);
+    }
+
+    public long getLevelSizeForIds(long[] ids, int level, int side, boolean collapsed) {
+        return getLevelFieldIndexed(ids, null, level, side, collapsed, 1, true);
+    }
+
+    public long getLevelTimestampForIds(long[] ids, int level, int side, boolean collapsed) {
+        return getLevelFieldIndexed(ids, null, level, side, collapsed, 2, false);
+    }
+
+    public long getLevelPriceForIds(IdSet ids, int level, int side, boolean collapsed) {
+        return getLevelFieldIndexed(ids.ids, ids, level, side, collapsed, 0, false);
+    }
+
+    public long getLevelSizeForIds(IdSet ids, int level, int side, boolean collapsed) {
+        return getLevelFieldIndexed(ids.ids, ids, level, side, collapsed, 1, true);
+    }
+
+    public long getLevelTimestampForIds(IdSet ids, int level, int side, boolean collapsed) {
+        return getLevelFieldIndexed(ids.ids, ids, level, side, collapsed, 2, false);
+    }
+
+    public static long getLevelPriceForIds(long[] data, long[] ids, int level, int side, boolean collapsed) {
+        return getLevelField(data, ids, null, level, side, collapsed, 0, false);
+    }
+
+    public static long getLevelSizeForIds(long[] data, long[] ids, int level, int side, boolean collapsed) {
+        return getLevelField(data, ids, null, level, side, collapsed, 1, true);
+    }
+
+    public static long getLevelTimestampForIds(long[] data, long[] ids, int level, int side, boolean collapsed) {
+        return getLevelField(data, ids, null, level, side, collapsed, 2, false);
+    }
+
+    public static long getLevelPriceForIds(long[] data, IdSet ids, int level, int side, boolean collapsed) {
+        return getLevelField(data, null, ids, level, side, collapsed, 0, false);
+    }
+
+    public static long getLevelSizeForIds(long[] data, IdSet ids, int level, int side, boolean collapsed) {
+        return getLevelField(data, null, ids, level, side, collapsed, 1, true);
+    }
+
+    public static long getLevelTimestampForIds(long[] data, IdSet ids, int level, int side, boolean collapsed) {
+        return getLevelField(data, null, ids, level, side, collapsed, 2, false);
+    }
+
+    /**
+     * Set of source ids for the ForIds queries. Ids in [0, 64) are tested with a single mask
+     * probe; any others fall back to a short array scan. The book's own ForIds readers use that
+     * test to scan the side instead of merging the index when the set is large compared to the
+     * level asked for.
+     */
+    public static final class IdSet {
+        private final long mask;
+        final long[] ids;
+        private final long[] others;
+
+        public IdSet(long... ids) {
+            long[] distinct = Arrays.stream(ids).distinct().toArray();
+            long m = 0;
+            int small = 0;
+            for (long id : distinct) {
+                if (id >= 0 && id < 64) {
+                    m |= 1L << id;
+                    small++;
+                }
+            }
+            long[] rest = new long[distinct.length - small];
+            for (int i = 0, j = 0; i < distinct.length; i++) {
+                if (distinct[i] < 0 || distinct[i] >= 64) rest[j++] = distinct[i];
+            }
+            this.mask = m;
+            this.ids = distinct;
+            this.others = rest;
+        }
+
+        public boolean contains(long id) {
+            if (id >= 0 && id < 64) return (mask & (1L << id)) != 0;
+            for (long other : others) {
+                if (other == id) return true;
+            }
+            return false;
+        }
+    }
+
+    // Scratch for the per-id merge in getLevelFieldIndexed, per reading thread: next rank and
+    // offset per id.
+    private static final class MergeScratch {
+        int[] rank = new int[8];
+        int[] offset = new int[8];
+    }
+
+    private static final ThreadLocal<MergeScratch> MERGE = ThreadLocal.withInitial(MergeScratch::new);
+
+    /**
+     * Walks the entries of the given ids in book order by merging their (id, n) offset lists,
+     * so level k costs O(k * ids) instead of a scan of the whole side. Duplicate ids share a
+     * cursor position and are advanced together. With a set whose ids would visit about the
+     * whole side anyway, one scan testing each entry against the set is cheaper. Safe from any
+     * thread: the lookups run under the seqlock like the other reads, against one snapshot of
+     * the index table, and retry on a torn view.
+     */
+    private long getLevelFieldIndexed(long[] ids, IdSet set, int level, int side, boolean collapsed, int fieldOffset, boolean sumIfCollapsed) {
+        int n = ids.length;
+        MergeScratch scratch = MERGE.get();
+        if (scratch.rank.length < n) {
+            scratch.rank = new int[n];
+            scratch.offset = new int[n];
+        }
+        for (;;) {
+            long stamp = tryRead();
+            if (stamp != 0) {
+                try {
+                    long[] data = this.data;
+                    long result = set != null && (long) n * (level + 1) >= data[side]
+                            ? getLevelField(data, null, set, level, side, collapsed, fieldOffset, sumIfCollapsed)
+                            : mergeLevelField(scratch, data, ids, n, level, side, collapsed, fieldOffset, sumIfCollapsed);
+                    if (validate(stamp)) return result;
+                } catch (IndexOutOfBoundsException torn) {
+                    // a half-updated index or a grown array; retry
+                }
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    private long mergeLevelField(MergeScratch scratch, long[] data, long[] ids, int n, int level, int side, boolean collapsed, int fieldOffset, boolean sumIfCollapsed) {
+        int[] mergeRank = scratch.rank;
+        int[] mergeOffset = scratch.offset;
+        IdLevelMap.Table index = idLevelToOffset[side].table();
+        for (int j = 0; j < n; j++) {
+            mergeRank[j] = 0;
+            mergeOffset[j] = IdLevelMap.get(index, ids[j], 0);
+        }
+
+        int matchCount = -1;
+        long accumulated = 0;
+        long currentPrice = Long.MIN_VALUE;
+        for (;;) {
+            int offset = Integer.MAX_VALUE;
+            for (int j = 0; j < n; j++) {
+                int o = mergeOffset[j];
+                if (o != 0 && o < offset) offset = o;
+            }
+            if (offset == Integer.MAX_VALUE) break;
+            for (int j = 0; j < n; j++) {
+                if (mergeOffset[j] == offset) mergeOffset[j] = IdLevelMap.get(index, ids[j], ++mergeRank[j]);
+            }
+
+            long price = data[offset];
+            long val = data[offset + fieldOffset];
+            if (!collapsed) {
+                if (++matchCount == level) return val;
+            } else if (price != currentPrice) {
+                if (matchCount == level) break;
+                matchCount++;
+                currentPrice = price;
+                accumulated = val;
+            } else if (matchCount == level && sumIfCollapsed) {
+                accumulated += val;
+            }
+        }
+        return matchCount == level ? accumulated : -1;
+    }
+
+    private static long getLevelField(long[] data, long[] ids, IdSet set, int level, int side, boolean collapsed, int fieldOffset, boolean sumIfCollapsed) {
+        int base = entries(data, side);
+        int depth = (int) data[side == 0 ? 0 : 1];
+
+        int matchCount = -1;
+        long accumulated = 0;
+        long currentPrice = Long.MIN_VALUE;
+
+        for (int i = 0; i < depth; i++) {
+            int offset = base + i * 4;
+            long price = data[offset];
+            long val = data[offset + fieldOffset];
+            long id = data[offset + 3];
+
+            boolean found = false;
+            if (set != null) {
+                found = set.contains(id);
+            } else if (ids.length == 1) {
+                found = (ids[0] == id);
+            } else if (ids.length == 2) {
+                found = (ids[0] == id || ids[1] == id);
+            } else {
+                for (int j = 0; j < ids.length; j++) {
+                    if (ids[j] == id) {
+                        found = true;
+                        break;
+                    }
+                }
+            }
+
+            if (!found) continue;
+
+            if (!collapsed) {
+                matchCount++;
+                if (matchCount == level) return val;
+            } else {
+                if (price != currentPrice) {
+                    if (matchCount == level) break;
+                    matchCount++;
+                    currentPrice = price;
+                    accumulated = val;
+                } else {
+                    if (matchCount == level && sumIfCollapsed) accumulated += val;
+                }
+            }
+        }
+
+        return matchCount == level ? accumulated : -1;
+    }
+
+    public static long getLevelId(long[] data, int side, int level, boolean collapse, boolean uncross) {
+        if (!hasLevel(data, side, level, collapse, uncross)) return Long.MIN_VALUE;
+        if (collapse) return data[(int) data[pointers(data, side) + collapsedLevel(data, side, level, uncross)] + 3];
+        return data[entries(data, side) + level * 4 + 3];
+    }
+
+    public static double getMidpoint(long[] data, boolean collapse, boolean uncross) {
+        checkUncross(collapse, uncross);
+        return midpoint(getLevelPrice(data, 0, 0, collapse, uncross), getLevelPrice(data, 1, 0, collapse, uncross));
+    }
+
+    public static double getMidpoint(long[] data, int start, int end, boolean collapse, boolean uncross) {
+        double bid = getVWAP(data, 0, start, end, collapse, uncross);
+        double ask = getVWAP(data, 1, start, end, collapse, uncross);
+        if (Double.isNaN(bid) || Double.isNaN(ask)) return Double.NaN;
+        return (bid + ask) / 2.0;
+    }
+
+    public static long getSpread(long[] data, boolean collapse, boolean uncross) {
+        checkUncross(collapse, uncross);
+        return spread(getLevelPrice(data, 0, 0, collapse, uncross), getLevelPrice(data, 1, 0, collapse, uncross));
+    }
+
+    public static double getSpread(long[] data, int start, int end, boolean collapse, boolean uncross) {
+        double bid = getVWAP(data, 0, start, end, collapse, uncross);
+        double ask = getVWAP(data, 1, start, end, collapse, uncross);
+        if (Double.isNaN(bid) || Double.isNaN(ask)) return Double.NaN;
+        return ask - bid;
+    }
+
+    public static double getImbalance(long[] data, boolean collapse, boolean uncross) {
+        checkUncross(collapse, uncross);
+        return imbalance(getLevelSize(data, 0, 0, collapse, uncross), getLevelSize(data, 1, 0, collapse, uncross));
+    }
+
+    // Top-of-book arithmetic shared by every book type, from best prices or sizes that are
+    // Long.MIN_VALUE when the side has no level.
+
+    static void checkUncross(boolean collapse, boolean uncross) {
+        if (uncross && !collapse) throw new IllegalArgumentException("Uncross requires collapse=true");
+    }
+
+    static double midpoint(long bid, long ask) {
+        return bid == Long.MIN_VALUE || ask == Long.MIN_VALUE ? Double.NaN : (bid + ask) / 2.0;
+    }
+
+    static long spread(long bid, long ask) {
+        return bid == Long.MIN_VALUE || ask == Long.MIN_VALUE ? Long.MIN_VALUE : ask - bid;
+    }
+
+    static double imbalance(long bidSize, long askSize) {
+        if (bidSize == Long.MIN_VALUE || askSize == Long.MIN_VALUE) return Double.NaN;
+        long total = bidSize + askSize;
+        return total == 0 ? 0.0 : (double) (bidSize - askSize) / total;
+    }
+
+    private static boolean hasLevel(long[] data, int side, int level, boolean collapse, boolean uncross) {
+        return level < levels(data, side, collapse, uncross);
+    }
+
+    // Number of raw, collapsed or uncrossed levels on a side.
+    private static int levels(long[] data, int side, boolean collapse, boolean uncross) {
+        if (!collapse) return (int) data[side];
+        int meta = data.length - META;
+        return (int) data[meta + (uncross ? M_BID_UNCROSS : M_BID_COLLAPSED) + side];
+    }
+
+    /** VWAP of the whole side: every raw entry, or with uncross every uncrossed level. */
+    public static double getVWAP(long[] data, int side, boolean uncross) {
+        return getVWAP(data, side, 0, levels(data, side, uncross, uncross), uncross, uncross);
+    }
+
+    /**
+     * Size-weighted price of levels [start, end) from the Fenwick sums, in O(log depth). Collapsed
+     * levels weigh every entry at their price, not only the first one.
+     */
+    public static double getVWAP(long[] data, int side, int start, int end, boolean collapse, boolean uncross) {
+        int max = Math.min(end, levels(data, side, collapse, uncross));
+        if (start >= max) return Double.NaN;
+
+        int from = start;
+        int to = max;
+        if (collapse) {
+            from = levelStart(data, side, collapsedLevel(data, side, start, uncross));
+            to = levelStart(data, side, collapsedLevel(data, side, max, uncross));
+        }
+        int sums = sums(data, side);
+        long totalSize = prefixSize(data, sums, to) - prefixSize(data, sums, from);
+        double totalValue = prefixValue(data, sums, to) - prefixValue(data, sums, from);
+        return totalSize > 0 ? totalValue / totalSize : Double.NaN;
+    }
+
+    public String formatSide(int side, boolean collapse, boolean uncross) {
+        StringBuilder sb = new StringBuilder();
+        String label = (side == 0 ? "BID" : "ASK") + (collapse ? (uncross ? "_UNCROSS" : "_COLLAPSED") : "_RAW");
+        sb.append(label).append(":\n");
+        int level = 0;
+        while (hasLevel(data, side, level, collapse, uncross)) {
+            long price = getLevelPrice(data, side, level, collapse, uncross);
+            long size = getLevelSize(data, side, level, collapse, uncross);
+            long ts = getLevelTimestamp(data, side, level, collapse, uncross);
+            long id = getLevelId(data, side, level, collapse, uncross);
+            sb.append("L").append(level).append(" -> ")
+              .append("P:").append(price).append(", S:").append(size)
+              .append(", T:").append(ts).append(", ID:").append(id).append("\n");
+            level++;
+        }
+        return sb.toString();
+    }
+
+} 
@@ -0,0 +1,369 @@
+package ob;
+
+import java.util.Arrays;
+
+/**
+ * Order-by-order (L3) book: every resting order is addressed by its own order id, each price
+ * level keeps its orders in an intrusive FIFO, and modify and cancel find their order with one
+ * hash lookup instead of the (id, level) scans of {@link OrderBook}.
+ * <p>
+ * Orders and levels live in pooled parallel arrays addressed by int handles and reused
+ * through free lists, so the steady state does not allocate. Each side keeps its levels
+ * sorted best first; only creating or emptying a price level shifts that array. Queue
+ * position comes from two Fenwick trees per level over arrival slots, one of sizes and one of
+ * order counts, so the size and number of orders ahead of an order cost O(log n), where n is
+ * the level's slot count. Slots are renumbered when a level runs out of them. A modify, and a
+ * cancel that leaves its level non-empty, cost O(log n) for the tree update; a cancel that
+ * empties its level also removes it from the side's sorted array, a binary search plus a shift
+ * of the levels behind it, O(levels). Modifies keep queue priority; callers replay a cancel
+ * and add where a venue resets it. Not thread safe.
+ */
+public final class OrderLevelBook {
+    private static final int NONE = -1;
+
+    private final LongIntMap handles;
+
+    // Orders by handle; next doubles as the free-list link.
+    private long[] orderIds;
+    private long[] sizes;
+    private long[] timestamps;
+    private int[] prev;
+    private int[] next;
+    private int[] levelOf;
+    private int[] slotOf;
+    private int orderCount;
+    private int orderHigh;
+    private int freeOrder = NONE;
+
+    // Levels by handle; tails double as the free-list link.
+    private long[] prices;
+    private long[] levelSizes;
+    private int[] levelCounts;
+    private int[] heads;
+    private int[] tails;
+    private int[] sides;
+    private int[] nextSlot;
+    private long[][] sizeTrees;
+    private int[][] countTrees;
+    private int levelHigh;
+    private int freeLevel = NONE;
+
+    private final LongIntMap[] priceToLevel = new LongIntMap[2];
+    private final int[][] sorted = new int[2][];
+    private final int[] depths = new int[2];
+
+    public OrderLevelBook(int expectedOrders) {
+        int orders = Math.max(16, expectedOrders);
+        int levels = Math.max(16, orders / 4);
+        handles = new LongIntMap(orders);
+        orderIds = new long[orders];
+        sizes = new long[orders];
+        timestamps = new long[orders];
+        prev = new int[orders];
+        next = new int[orders];
+        levelOf = new int[orders];
+        slotOf = new int[orders];
+        prices = new long[levels];
+        levelSizes = new long[levels];
+        levelCounts = new int[levels];
+        heads = new int[levels];
+        tails = new int[levels];
+        sides = new int[levels];
+        nextSlot = new int[levels];
+        sizeTrees = new long[levels][];
+        countTrees = new int[levels][];
+        for (int side = 0; side < 2; side++) {
+            priceToLevel[side] = new LongIntMap(levels);
+            sorted[side] = new int[levels];
+        }
+    }
+
+    /** Adds a resting order at the back of its price level's queue. */
+    public void add(long orderId, int side, long price, long size, long ts) {
+        if (handles.get(orderId) != 0) throw new IllegalStateException("Duplicate order id " + orderId);
+        int level = priceToLevel[side].get(price) - 1;
+        if (level < 0) level = newLevel(side, price);
+        if (nextSlot[level] + 1 == countTrees[level].length) renumber(level);
+
+        int h = newOrder();
+        orderIds[h] = orderId;
+        sizes[h] = size;
+        timestamps[h] = ts;
+        levelOf[h] = level;
+        slotOf[h] = ++nextSlot[level];
+        next[h] = NONE;
+        prev[h] = tails[level];
+        if (tails[level] == NONE) heads[level] = h;
+        else next[tails[level]] = h;
+        tails[level] = h;
+
+        fenwickAdd(level, slotOf[h], size, 1);
+        levelSizes[level] += size;
+        levelCounts[level]++;
+        handles.put(orderId, h + 1);
+    }
+
+    /** Sets a resting order's size, keeping its place in the queue; false if it is unknown. */
+    public boolean modify(long orderId, long newSize) {
+        int h = handles.get(orderId) - 1;
+        if (h < 0) return false;
+        int level = levelOf[h];
+        long delta = newSize - sizes[h];
+        sizes[h] = newSize;
+        levelSizes[level] += delta;
+        fenwickAdd(level, slotOf[h], delta, 0);
+        return true;
+    }
+
+    /** Removes a resting order, and its price level if that empties; false if it is unknown. */
+    public boolean cancel(long orderId) {
+        int h = handles.remove(orderId) - 1;
+        if (h < 0) return false;
+        int level = levelOf[h];
+        fenwickAdd(level, slotOf[h], -sizes[h], -1);
+        levelSizes[level] -= sizes[h];
+
+        if (prev[h] == NONE) heads[level] = next[h];
+        else next[prev[h]] = next[h];
+        if (next[h] == NONE) tails[level] = prev[h];
+        else prev[next[h]] = prev[h];
+
+        next[h] = freeOrder;
+        freeOrder = h;
+        orderCount--;
+        if (--levelCounts[level] == 0) removeLevel(level);
+        return true;
+    }
+
+    /** Removes every order on both sides. */
+    public void clear() {
+        for (int side = 0; side < 2; side++) {
+            while (depths[side] > 0) {
+                int level = sorted[side][0];
+                while (heads[level] != NONE) cancel(orderIds[heads[level]]);
+            }
+        }
+    }
+
+    public int getOrderCount() {
+        return orderCount;
+    }
+
+    /** Number of price levels on side. */
+    public int getDepth(int side) {
+        return depths[side];
+    }
+
+    public long getLevelPrice(int side, int level) {
+        return level < depths[side] ? prices[sorted[side][level]] : Long.MIN_VALUE;
+    }
+
+    public long getLevelSize(int side, int level) {
+        return level < depths[side] ? levelSizes[sorted[side][level]] : Long.MIN_VALUE;
+    }
+
+    public int getLevelOrderCount(int side, int level) {
+        return level < depths[side] ? levelCounts[sorted[side][level]] : 0;
+    }
+
+    public double getMidpoint() {
+        return OrderBook.midpoint(getLevelPrice(0, 0), getLevelPrice(1, 0));
+    }
+
+    public long getSpread() {
+        return OrderBook.spread(getLevelPrice(0, 0), getLevelPrice(1, 0));
+    }
+
+    /** Order id at the front of a level's queue, or Long.MIN_VALUE. */
+    public long getFirstOrder(int side, int level) {
+        return level < depths[side] ? orderIds[heads[sorted[side][level]]] : Long.MIN_VALUE;
+    }
+
+    /** Order id queued behind orderId at its price, or Long.MIN_VALUE at the back or if unknown. */
+    public long getNextOrder(long orderId) {
+        int h = handles.get(orderId) - 1;
+        return h < 0 || next[h] == NONE ? Long.MIN_VALUE : orderIds[next[h]];
+    }
+
+    public boolean contains(long orderId) {
+        return handles.get(orderId) != 0;
+    }
+
+    public long getOrderPrice(long orderId) {
+        int h = handles.get(orderId) - 1;
+        return h < 0 ? Long.MIN_VALUE : prices[levelOf[h]];
+    }
+
+    public long getOrderSize(long orderId) {
+        int h = handles.get(orderId) - 1;
+        return h < 0 ? Long.MIN_VALUE : sizes[h];
+    }
+
+    public long getOrderTimestamp(long orderId) {
+        int h = handles.get(orderId) - 1;
+        return h < 0 ? Long.MIN_VALUE : timestamps[h];
+    }
+
+    /** 0 for bid, 1 for ask, -1 if unknown. */
+    public int getOrderSide(long orderId) {
+        int h = handles.get(orderId) - 1;
+        return h < 0 ? -1 : sides[levelOf[h]];
+    }
+
+    /** Index of the order's price level on its side, best first, or -1 if unknown. */
+    public int getOrderLevel(long orderId) {
+        int h = handles.get(orderId) - 1;
+        if (h < 0) return -1;
+        int level = levelOf[h];
+        return find(sides[level], prices[level]);
+    }
+
+    /** Total size queued ahead of orderId at its price, or Long.MIN_VALUE if unknown. */
+    public long getSizeAhead(long orderId) {
+        int h = handles.get(orderId) - 1;
+        if (h < 0) return Long.MIN_VALUE;
+        long[] tree = sizeTrees[levelOf[h]];
+        long sum = 0;
+        for (int i = slotOf[h] - 1; i > 0; i -= i & -i) sum += tree[i];
+        return sum;
+    }
+
+    /** Number of orders queued ahead of orderId at its price, or -1 if unknown. */
+    public int getOrdersAhead(long orderId) {
+        int h = handles.get(orderId) - 1;
+        if (h < 0) return -1;
+        int[] tree = countTrees[levelOf[h]];
+        int sum = 0;
+        for (int i = slotOf[h] - 1; i > 0; i -= i & -i) sum += tree[i];
+        return sum;
+    }
+
+    private void fenwickAdd(int level, int slot, long size, int count) {
+        long[] sizeTree = sizeTrees[level];
+        int[] countTree = countTrees[level];
+        for (int i = slot; i < sizeTree.length; i += i & -i) {
+            sizeTree[i] += size;
+            countTree[i] += count;
+        }
+    }
+
+    // Gives a level's live orders slots 1..n in queue order, doubling the trees if over half full.
+    private void renumber(int level) {
+        int n = levelCounts[level];
+        int length = countTrees[level].length;
+        if (2 * (n + 1) > length) {
+            length *= 2;
+            sizeTrees[level] = new long[length];
+            countTrees[level] = new int[length];
+        } else {
+            Arrays.fill(sizeTrees[level], 0);
+            Arrays.fill(countTrees[level], 0);
+        }
+        long[] sizeTree = sizeTrees[level];
+        int[] countTree = countTrees[level];
+        int slot = 0;
+        for (int h = heads[level]; h != NONE; h = next[h]) {
+            slotOf[h] = ++slot;
+            sizeTree[slot] = sizes[h];
+            countTree[slot] = 1;
+        }
+        // Linear Fenwick build: push each node's total into its parent.
+        for (int i = 1; i < length; i++) {
+            int parent = i + (i & -i);
+            if (parent < length) {
+                sizeTree[parent] += sizeTree[i];
+                countTree[parent] += countTree[i];
+            }
+        }
+        nextSlot[level] = slot;
+    }
+
+    private int newOrder() {
+        orderCount++;
+        if (freeOrder != NONE) {
+            int h = freeOrder;
+            freeOrder = next[h];
+            return h;
+        }
+        if (orderHigh == orderIds.length) {
+            int n = orderHigh * 2;
+            orderIds = Arrays.copyOf(orderIds, n);
+            sizes = Arrays.copyOf(sizes, n);
+            timestamps = Arrays.copyOf(timestamps, n);
+            prev = Arrays.copyOf(prev, n);
+            next = Arrays.copyOf(next, n);
+            levelOf = Arrays.copyOf(levelOf, n);
+            slotOf = Arrays.copyOf(slotOf, n);
+        }
+        return orderHigh++;
+    }
+
+    private int newLevel(int side, long price) {
+        int level;
+        if (freeLevel != NONE) {
+            level = freeLevel;
+            freeLevel = tails[level];
+        } else {
+            if (levelHigh == prices.length) {
+                int n = levelHigh * 2;
+                prices = Arrays.copyOf(prices, n);
+                levelSizes = Arrays.copyOf(levelSizes, n);
+                levelCounts = Arrays.copyOf(levelCounts, n);
+                heads = Arrays.copyOf(heads, n);
+                tails = Arrays.copyOf(tails, n);
+                sides = Arrays.copyOf(sides, n);
+                nextSlot = Arrays.copyOf(nextSlot, n);
+                sizeTrees = Arrays.copyOf(sizeTrees, n);
+                countTrees = Arrays.copyOf(countTrees, n);
+            }
+            level = levelHigh++;
+            sizeTrees[level] = new long[16];
+            countTrees[level] = new int[16];
+        }
+        prices[level] = price;
+        levelSizes[level] = 0;
+        levelCounts[level] = 0;
+        heads[level] = tails[level] = NONE;
+        sides[level] = side;
+        nextSlot[level] = 0;
+        // Trees of a reused level are zero again once its last order is cancelled.
+
+        int depth = depths[side];
+        int[] order = sorted[side];
+        if (depth == order.length) order = sorted[side] = Arrays.copyOf(order, depth * 2);
+        int at = insertionPoint(side, price);
+        System.arraycopy(order, at, order, at + 1, depth - at);
+        order[at] = level;
+        depths[side] = depth + 1;
+        priceToLevel[side].put(price, level + 1);
+        return level;
+    }
+
+    private void removeLevel(int level) {
+        int side = sides[level];
+        priceToLevel[side].remove(prices[level]);
+        int at = find(side, prices[level]);
+        int[] order = sorted[side];
+        System.arraycopy(order, at + 1, order, at, depths[side] - at - 1);
+        depths[side]--;
+        tails[level] = freeLevel;
+        freeLevel = level;
+    }
+
+    // First sorted index whose price is worse than price.
+    private int insertionPoint(int side, long price) {
+        int[] order = sorted[side];
+        int lo = 0, hi = depths[side];
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            long p = prices[order[mid]];
+            if (side == 0 ? p >= price : p <= price) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    private int find(int side, long price) {
+        return insertionPoint(side, price) - 1;
+    }
+}
@@ -0,0 +1,320 @@
+package ob;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An OrderBook image in a memory-mapped file, shared by processes on the same host.
+ * The file is a small header (magic, data length, seqlock stamp) followed by the book array in
+ * exactly the OrderBook layout, tail meta block included, so the static accessors below are the
+ * long[] ones indexing the mapping instead of a heap array. One writer calls {@link #publish}
+ * after each mutation or batch; readers bracket their queries with {@link #tryRead()} and
+ * {@link #validate(long)}.
+ */
+public final class SharedBook {
+    private static final long MAGIC = 0x4F42534D454D3031L;
+    private static final int HEADER = 4;
+    private static final int LENGTH_AT = 8;
+    private static final int SEQ_AT = 16;
+
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private final MappedByteBuffer buffer;
+    private final LongBuffer data;
+    private final int length;
+    private long seq;
+
+    private SharedBook(MappedByteBuffer buffer, int length) {
+        this.buffer = buffer;
+        this.length = length;
+        this.data = buffer.slice(HEADER * 8, length * 8).order(ByteOrder.nativeOrder()).asLongBuffer();
+    }
+
+    /** Creates or truncates file to hold book's layout, maps it for writing and publishes book. */
+    public static SharedBook create(Path file, OrderBook book) throws IOException {
+        int length = book.getData().length;
+        MappedByteBuffer buffer;
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            buffer = ch.map(FileChannel.MapMode.READ_WRITE, 0, (HEADER + length) * 8L);
+        }
+        buffer.order(ByteOrder.nativeOrder());
+        buffer.putLong(LENGTH_AT, length);
+        LONGS.setRelease(buffer, SEQ_AT, 2L);
+        buffer.putLong(0, MAGIC);
+        SharedBook shared = new SharedBook(buffer, length);
+        shared.seq = 2;
+        shared.data.put(0, book.getData());
+        book.takeUnpublished(0);
+        book.takeUnpublished(1);
+        return shared;
+    }
+
+    /** Maps an existing book file read-only. */
+    public static SharedBook open(Path file) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            buffer = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        }
+        buffer.order(ByteOrder.nativeOrder());
+        if (buffer.capacity() < HEADER * 8 || buffer.getLong(0) != MAGIC) {
+            throw new IllegalArgumentException("Not a shared book file: " + file);
+        }
+        int length = (int) buffer.getLong(LENGTH_AT);
+        if ((HEADER + (long) length) * 8 > buffer.capacity()) {
+            throw new IllegalArgumentException("Truncated shared book file: " + file);
+        }
+        return new SharedBook(buffer, length);
+    }
+
+    /** The mapped book array; indices match {@link OrderBook#getData()}. */
+    public LongBuffer getData() {
+        return data;
+    }
+
+    /**
+     * Copies what book rewrote since the last publish into the mapping: depths, entries from the
+     * lowest rewritten one on, the collapsed pointers and Fenwick nodes that can depend on them,
+     * and the meta block. A modify near the back of the book copies a few entries, not the whole
+     * side. Each book publishes to at most one SharedBook, from the book's writer thread.
+     */
+    public void publish(OrderBook book) {
+        long[] src = book.getData();
+        if (src.length != length) throw new IllegalArgumentException("Book layout does not match file");
+        int meta = length - OrderBook.META;
+
+        LONGS.setOpaque(buffer, SEQ_AT, ++seq);
+        VarHandle.storeStoreFence();
+        data.put(0, src, 0, 2);
+        for (int side = 0; side < 2; side++) {
+            int base = (int) src[meta + OrderBook.M_BID_BASE + side];
+            int ptrs = (int) src[meta + OrderBook.M_BID_PTRS + side];
+            int sums = (int) src[meta + OrderBook.M_BID_SUMS + side];
+            int depth = (int) src[side];
+            int from = Math.min(book.takeUnpublished(side), depth);
+            // Levels starting before the first rewritten entry keep their index and pointer.
+            int collapsed = (int) src[meta + OrderBook.M_BID_COLLAPSED + side];
+            int level = firstPointerAt(src, ptrs, collapsed, base + 4 * from);
+            data.put(base + 4 * from, src, base + 4 * from, 4 * (depth - from));
+            data.put(ptrs + level, src, ptrs + level, collapsed - level);
+            // Node i covers entries [i - lowbit(i), i), so only nodes from `from` on changed.
+            data.put(sums + 2 * from, src, sums + 2 * from, 2 * (depth + 1 - from));
+        }
+        data.put(meta, src, meta, OrderBook.META);
+        LONGS.setRelease(buffer, SEQ_AT, ++seq);
+    }
+
+    // Index of the first collapsed pointer at or after offset off, by binary search.
+    private static int firstPointerAt(long[] src, int ptrs, int collapsed, int off) {
+        int lo = 0, hi = collapsed;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (src[ptrs + mid] < off) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    /** Stamp for an optimistic read of {@link #getData()}, or 0 while a publish is in progress. */
+    public long tryRead() {
+        long v = (long) LONGS.getAcquire(buffer, SEQ_AT);
+        return (v & 1) == 0 ? v : 0;
+    }
+
+    public boolean validate(long stamp) {
+        VarHandle.loadLoadFence();
+        return stamp != 0 && (long) LONGS.getOpaque(buffer, SEQ_AT) == stamp;
+    }
+
+    /** Copies a consistent image into dst, which then works with the OrderBook static accessors. */
+    public long copyTo(long[] dst) {
+        for (;;) {
+            long stamp = tryRead();
+            if (stamp != 0) {
+                data.get(0, dst, 0, length);
+                if (validate(stamp)) return stamp;
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    // Raw or collapsed index behind a level, or -1 if there is none.
+    private static int index(LongBuffer data, int side, int level, boolean collapse, boolean uncross) {
+        int meta = data.limit() - OrderBook.META;
+        if (level < 0) return -1;
+        if (!collapse) return level < data.get(side) ? level : -1;
+        int collapsed = (int) data.get(meta + OrderBook.M_BID_COLLAPSED + side);
+        int depth = uncross ? (int) data.get(meta + OrderBook.M_BID_UNCROSS + side) : collapsed;
+        return level < depth ? level + (collapsed - depth) : -1;
+    }
+
+    // Offset of a raw entry or of the first entry of a collapsed level, or -1 if there is none.
+    private static int entry(LongBuffer data, int side, int level, boolean collapse, boolean uncross) {
+        int i = index(data, side, level, collapse, uncross);
+        if (i < 0) return -1;
+        int meta = data.limit() - OrderBook.META;
+        if (!collapse) return (int) data.get(meta + OrderBook.M_BID_BASE + side) + i * 4;
+        return (int) data.get((int) data.get(meta + OrderBook.M_BID_PTRS + side) + i);
+    }
+
+    // Raw index of the first entry of a raw or collapsed index; one past the end maps to the depth.
+    private static int rawStart(LongBuffer data, int side, int i, boolean collapse) {
+        if (!collapse) return i;
+        int meta = data.limit() - OrderBook.META;
+        if (i >= data.get(meta + OrderBook.M_BID_COLLAPSED + side)) return (int) data.get(side);
+        int ptr = (int) data.get((int) data.get(meta + OrderBook.M_BID_PTRS + side) + i);
+        return (ptr - (int) data.get(meta + OrderBook.M_BID_BASE + side)) >> 2;
+    }
+
+    private static long sizeBetween(LongBuffer data, int side, int from, int to) {
+        int sums = (int) data.get(data.limit() - OrderBook.META + OrderBook.M_BID_SUMS + side);
+        return prefixSize(data, sums, to) - prefixSize(data, sums, from);
+    }
+
+    // Prefix walks over the Fenwick sums section, as in OrderBook.
+    private static long prefixSize(LongBuffer data, int sums, int n) {
+        long size = 0;
+        for (int i = n; i > 0; i -= i & -i) size += data.get(sums + 2 * i);
+        return size;
+    }
+
+    private static double prefixValue(LongBuffer data, int sums, int n) {
+        double value = 0;
+        for (int i = n; i > 0; i -= i & -i) value += Double.longBitsToDouble(data.get(sums + 2 * i + 1));
+        return value;
+    }
+
+    private static long levelSize(LongBuffer data, int side, int level, boolean collapse, boolean uncross) {
+        int i = index(data, side, level, collapse, uncross);
+        if (i < 0) return Long.MIN_VALUE;
+        return sizeBetween(data, side, rawStart(data, side, i, collapse), rawStart(data, side, i + 1, collapse));
+    }
+
+    public static long getLevelPrice(LongBuffer data, int side, int level, boolean collapse, boolean uncross) {
+        int off = entry(data, side, level, collapse, uncross);
+        return off < 0 ? Long.MIN_VALUE : data.get(off);
+    }
+
+    public static long getLevelSize(LongBuffer data, int side, int level, boolean collapse, boolean uncross) {
+        return levelSize(data, side, level, collapse, uncross);
+    }
+
+    public static long getLevelTimestamp(LongBuffer data, int side, int level, boolean collapse, boolean uncross) {
+        int off = entry(data, side, level, collapse, uncross);
+        return off < 0 ? Long.MIN_VALUE : data.get(off + 2);
+    }
+
+    public static long getLevelId(LongBuffer data, int side, int level, boolean collapse, boolean uncross) {
+        int off = entry(data, side, level, collapse, uncross);
+        return off < 0 ? Long.MIN_VALUE : data.get(off + 3);
+    }
+
+    public static double getMidpoint(LongBuffer data, boolean collapse, boolean uncross) {
+        OrderBook.checkUncross(collapse, uncross);
+        return OrderBook.midpoint(getLevelPrice(data, 0, 0, collapse, uncross), getLevelPrice(data, 1, 0, collapse, uncross));
+    }
+
+    public static long getSpread(LongBuffer data, boolean collapse, boolean uncross) {
+        OrderBook.checkUncross(collapse, uncross);
+        return OrderBook.spread(getLevelPrice(data, 0, 0, collapse, uncross), getLevelPrice(data, 1, 0, collapse, uncross));
+    }
+
+    public static double getImbalance(LongBuffer data, boolean collapse, boolean uncross) {
+        OrderBook.checkUncross(collapse, uncross);
+        return OrderBook.imbalance(levelSize(data, 0, 0, collapse, uncross), levelSize(data, 1, 0, collapse, uncross));
+    }
+
+    /** VWAP of the whole side: every raw entry, or with uncross every uncrossed level. */
+    public static double getVWAP(LongBuffer data, int side, boolean uncross) {
+        int meta = data.limit() - OrderBook.META;
+        int count = !uncross ? (int) data.get(side) : (int) data.get(meta + OrderBook.M_BID_UNCROSS + side);
+        return getVWAP(data, side, 0, count, uncross, uncross);
+    }
+
+    public static double getVWAP(LongBuffer data, int side, int start, int end, boolean collapse, boolean uncross) {
+        int meta = data.limit() - OrderBook.META;
+        int count = !collapse ? (int) data.get(side)
+                : (int) data.get(meta + (uncross ? OrderBook.M_BID_UNCROSS : OrderBook.M_BID_COLLAPSED) + side);
+        int max = Math.min(end, count);
+        if (start >= max) return Double.NaN;
+
+        int skip = collapse ? (int) data.get(meta + OrderBook.M_BID_COLLAPSED + side) - count : 0;
+        int from = rawStart(data, side, start + skip, collapse);
+        int to = rawStart(data, side, max + skip, collapse);
+        int sums = (int) data.get(meta + OrderBook.M_BID_SUMS + side);
+        long totalSize = prefixSize(data, sums, to) - prefixSize(data, sums, from);
+        double totalValue = prefixValue(data, sums, to) - prefixValue(data, sums, from);
+        return totalSize > 0 ? totalValue / totalSize : Double.NaN;
+    }
+
+    public static long getLevelPriceForIds(LongBuffer data, long[] ids, int level, int side, boolean collapsed) {
+        return getLevelField(data, ids, null, level, side, collapsed, 0, false);
+    }
+
+    public static long getLevelSizeForIds(LongBuffer data, long[] ids, int level, int side, boolean collapsed) {
+        return getLevelField(data, ids, null, level, side, collapsed, 1, true);
+    }
+
+    public static long getLevelTimestampForIds(LongBuffer data, long[] ids, int level, int side, boolean collapsed) {
+        return getLevelField(data, ids, null, level, side, collapsed, 2, false);
+    }
+
+    public static long getLevelPriceForIds(LongBuffer data, OrderBook.IdSet ids, int level, int side, boolean collapsed) {
+        return getLevelField(data, null, ids, level, side, collapsed, 0, false);
+    }
+
+    public static long getLevelSizeForIds(LongBuffer data, OrderBook.IdSet ids, int level, int side, boolean collapsed) {
+        return getLevelField(data, null, ids, level, side, collapsed, 1, true);
+    }
+
+    public static long getLevelTimestampForIds(LongBuffer data, OrderBook.IdSet ids, int level, int side, boolean collapsed) {
+        return getLevelField(data, null, ids, level, side, collapsed, 2, false);
+    }
+
+    // The mapping carries no id index, so this scans the side like the long[] ForIds accessors.
+    private static long getLevelField(LongBuffer data, long[] ids, OrderBook.IdSet set, int level, int side, boolean collapsed, int fieldOffset, boolean sumIfCollapsed) {
+        int base = (int) data.get(data.limit() - OrderBook.META + OrderBook.M_BID_BASE + side);
+        int depth = (int) data.get(side);
+
+        int matchCount = -1;
+        long accumulated = 0;
+        long currentPrice = Long.MIN_VALUE;
+        for (int i = 0; i < depth; i++) {
+            int offset = base + i * 4;
+            long id = data.get(offset + 3);
+            boolean found = false;
+            if (set != null) {
+                found = set.contains(id);
+            } else {
+                for (long x : ids) {
+                    if (x == id) {
+                        found = true;
+                        break;
+                    }
+                }
+            }
+            if (!found) continue;
+
+            long price = data.get(offset);
+            long val = data.get(offset + fieldOffset);
+            if (!collapsed) {
+                if (++matchCount == level) return val;
+            } else if (price != currentPrice) {
+                if (matchCount == level) break;
+                matchCount++;
+                currentPrice = price;
+                accumulated = val;
+            } else if (matchCount == level && sumIfCollapsed) {
+                accumulated += val;
+            }
+        }
+        return matchCount == level ? accumulated : -1;
+    }
+}
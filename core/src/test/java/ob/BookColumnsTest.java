@@ -0,0 +1,51 @@
+package ob;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+import org.junit.jupiter.api.Test;
+
+class BookColumnsTest {
+    @Test
+    void vectorKernelsMatchScalarOnesIncludingTailLanes() {
+        assumeTrue(ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent(), "vector module not present");
+        BookColumns.Kernels vector = BookColumns.VectorKernels.create();
+        BookColumns.Kernels scalar = new BookColumns.ScalarKernels();
+        assumeTrue(vector.name().equals("vector"), "long and double vector shapes differ");
+        SplittableRandom random = new SplittableRandom(13);
+        long[] a = new long[80];
+        long[] b = new long[80];
+        long[] keys = new long[80];
+        int[] want = new int[80];
+        int[] got = new int[80];
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < a.length; i++) {
+                a[i] = random.nextLong(-1_000_000, 1_000_000);
+                b[i] = random.nextLong(0, 10_000);
+                // Few distinct keys, so every lane pattern of matches comes up.
+                keys[i] = random.nextInt(3);
+            }
+            // Every start alignment and every length past a few vector widths, so the loop bound
+            // and the scalar tail both run with each possible remainder.
+            for (int from = 0; from < 9; from++) {
+                for (int to = from; to <= from + 40; to++) {
+                    String at = "[" + from + ", " + to + ")";
+                    assertEquals(scalar.sum(a, from, to), vector.sum(a, from, to), "sum " + at);
+                    double dot = scalar.dot(a, b, from, to);
+                    assertEquals(dot, vector.dot(a, b, from, to), Math.abs(dot) * 1e-12, "dot " + at);
+                    for (long k = 0; k < 4; k++) {
+                        assertEquals(scalar.sumWhere(keys, k, b, from, to), vector.sumWhere(keys, k, b, from, to), "sumWhere " + at);
+                        assertEquals(scalar.countWhere(keys, k, from, to), vector.countWhere(keys, k, from, to), "countWhere " + at);
+                        int n = scalar.indexWhere(keys, k, from, to, want);
+                        assertEquals(n, vector.indexWhere(keys, k, from, to, got), "indexWhere " + at);
+                        assertArrayEquals(Arrays.copyOf(want, n), Arrays.copyOf(got, n), "indexWhere " + at);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package ob;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+class BookHistoryTest {
+    @Test
+    void setHistoryWithoutAttachTakesTheInitialKeyframe() {
+        AtomicLong clock = new AtomicLong();
+        BookHistory history = new BookHistory(2, 4, clock::incrementAndGet);
+        OrderBook book = new OrderBook(8);
+        book.addPrice(0, 100, 10, 0, 1);
+        book.setHistory(history);
+        assertEquals(0, history.oldestVersion());
+
+        for (int i = 0; i < 3; i++) book.addPrice(0, 99 - i, 10, i, 2);
+        assertEquals(3, history.version());
+        OrderBook past = history.atVersion(1);
+        assertEquals(2, past.getData()[0]);
+        assertEquals(99, past.getLevelPrice(0, 1, false, false));
+        assertEquals(1, history.atVersion(0).getData()[0]);
+    }
+
+    @Test
+    void queriesOutsideTheRetainedRangeReturnNull() {
+        AtomicLong clock = new AtomicLong(10);
+        BookHistory history = new BookHistory(2, 3, clock::get);
+        assertEquals(-1, history.oldestVersion());
+        assertEquals(Long.MAX_VALUE, history.oldestTime());
+        assertNull(history.asOf(Long.MAX_VALUE));
+
+        OrderBook book = new OrderBook(8);
+        history.attach(book);
+        assertEquals(10, history.oldestTime());
+        assertNull(history.asOf(9));
+        assertNull(history.atVersion(-1));
+        assertNull(history.atVersion(1));
+        assertEquals(0, history.asOf(10).getData()[0]);
+
+        // Two adds in the same tick: asOf sees both, atVersion each in turn.
+        clock.set(20);
+        book.addPrice(0, 100, 1, 0, 1);
+        book.addPrice(0, 99, 1, 0, 2);
+        assertEquals(0, history.asOf(19).getData()[0]);
+        assertEquals(2, history.asOf(20).getData()[0]);
+        assertEquals(1, history.atVersion(1).getData()[0]);
+        assertEquals(2, history.asOf(Long.MAX_VALUE).getData()[0]);
+
+        // Keyframes every three mutations and room for two: at version 9 only those at 6 and 9 remain.
+        for (int i = 0; i < 7; i++) {
+            clock.set(30 + i);
+            book.addPrice(1, 200 + i, 1, 0, 10 + i);
+        }
+        assertEquals(9, history.version());
+        assertEquals(6, history.oldestVersion());
+        assertEquals(33, history.oldestTime());
+        assertNull(history.atVersion(5));
+        assertNull(history.asOf(32));
+        assertEquals(4, history.atVersion(6).getData()[1]);
+        assertEquals(5, history.asOf(34).getData()[1]);
+        assertEquals(7, history.atVersion(9).getData()[1]);
+    }
+
+    @Test
+    void restoreGetsAVersionOfItsOwn() {
+        AtomicLong clock = new AtomicLong();
+        BookHistory history = new BookHistory(4, 8, clock::incrementAndGet);
+        OrderBook book = new OrderBook(8);
+        history.attach(book);
+        book.addPrice(0, 100, 10, 0, 1);
+        long[] one = book.snapshot();
+        book.addPrice(0, 99, 10, 0, 2);
+        assertEquals(2, history.version());
+
+        book.restore(one);
+        assertEquals(3, history.version());
+        assertEquals(2, history.atVersion(2).getData()[0]);
+        assertEquals(1, history.atVersion(3).getData()[0]);
+        book.addPrice(1, 105, 10, 0, 3);
+        OrderBook latest = history.atVersion(4);
+        assertEquals(1, latest.getData()[0]);
+        assertEquals(1, latest.getData()[1]);
+        // Sweeping back over the restore replays from the keyframe before it.
+        assertEquals(2, history.atVersion(2).getData()[0]);
+        assertEquals(0, history.atVersion(0).getData()[0]);
+    }
+
+    @Test
+    void attachingAnotherBookDetachesTheFirst() {
+        AtomicLong clock = new AtomicLong();
+        BookHistory history = new BookHistory(4, 8, clock::incrementAndGet);
+        OrderBook first = new OrderBook(8);
+        OrderBook second = new OrderBook(8);
+        history.attach(first);
+        first.addPrice(0, 100, 10, 0, 1);
+        second.addPrice(1, 105, 10, 0, 2);
+        second.addPrice(1, 106, 10, 0, 3);
+
+        history.attach(second);
+        assertNull(first.getHistory());
+        assertSame(history, second.getHistory());
+        assertEquals(2, history.version());
+        first.addPrice(0, 99, 10, 0, 4);
+        assertEquals(2, history.version());
+        second.removeLevelById(3, 0, 1);
+        assertEquals(3, history.version());
+
+        assertEquals(1, history.atVersion(1).getData()[0]);
+        assertEquals(2, history.atVersion(2).getData()[1]);
+        assertEquals(0, history.atVersion(2).getData()[0]);
+        assertEquals(1, history.atVersion(3).getData()[1]);
+
+        // A book another history took over is left alone.
+        BookHistory other = new BookHistory(4, 8, clock::incrementAndGet);
+        other.attach(second);
+        history.attach(first);
+        assertSame(other, second.getHistory());
+    }
+
+    @Test
+    void reattachingTheSameBookCatchesUpWithMissedMutations() {
+        AtomicLong clock = new AtomicLong();
+        BookHistory history = new BookHistory(4, 8, clock::incrementAndGet);
+        OrderBook book = new OrderBook(8);
+        book.setHistory(history);
+        book.addPrice(0, 100, 10, 0, 1);
+        book.setHistory(null);
+        book.addPrice(0, 99, 10, 0, 2);
+        book.setHistory(history);
+
+        assertEquals(2, history.version());
+        assertEquals(1, history.atVersion(1).getData()[0]);
+        assertEquals(2, history.atVersion(2).getData()[0]);
+        book.addPrice(0, 98, 10, 0, 3);
+        assertEquals(3, history.atVersion(3).getData()[0]);
+    }
+
+    @Test
+    void randomMutationsMatchRecordedStates() {
+        SplittableRandom random = new SplittableRandom(29);
+        AtomicLong clock = new AtomicLong();
+        BookHistory history = new BookHistory(3, 5, clock::get);
+        OrderBook book = new OrderBook(4, OrderBook.OVERFLOW_GROW);
+        history.attach(book);
+        // The state after each call and the clock it was recorded at; a batch's inner versions are skipped.
+        Map<Long, List<Long>> states = new TreeMap<>();
+        Map<Long, Long> times = new TreeMap<>();
+        states.put(0L, state(book));
+        times.put(0L, 0L);
+        List<long[]> snapshots = new ArrayList<>();
+        for (int round = 0; round < 3_000; round++) {
+            // Some calls share a tick, so asOf must take the last of them.
+            if (random.nextInt(3) > 0) clock.incrementAndGet();
+            long before = history.version();
+            int side = random.nextInt(2);
+            long id = random.nextInt(6);
+            int op = random.nextInt(100);
+            if (op < 45) {
+                book.addPrice(side, side == 0 ? 100 - random.nextInt(8) : 101 + random.nextInt(8), 1 + random.nextInt(9), round, id);
+            } else if (op < 60) {
+                book.modifyLevelById(id, 0, side, 1 + random.nextInt(9));
+            } else if (op < 80) {
+                book.removeLevelById(id, 0, side);
+            } else if (op < 85) {
+                book.clear(side);
+            } else if (op < 95) {
+                int n = 1 + random.nextInt(3);
+                long[] events = new long[n * OrderBook.EVENT_SIZE];
+                for (int i = 0; i < n; i++) {
+                    int at = i * OrderBook.EVENT_SIZE;
+                    events[at] = OrderBook.OP_ADD;
+                    events[at + 1] = side;
+                    events[at + 2] = side == 0 ? 100 - random.nextInt(8) : 101 + random.nextInt(8);
+                    events[at + 3] = 1 + random.nextInt(9);
+                    events[at + 4] = round;
+                    events[at + 5] = random.nextInt(6);
+                }
+                book.applyBatch(events, 0, n);
+            } else if (op < 98 || snapshots.isEmpty()) {
+                snapshots.add(book.snapshot());
+            } else {
+                book.restore(snapshots.get(random.nextInt(snapshots.size())));
+                assertEquals(before + 1, history.version());
+            }
+            if (history.version() != before) {
+                states.put(history.version(), state(book));
+                times.put(history.version(), clock.get());
+            }
+
+            for (int q = 0; q < 3; q++) {
+                long v = random.nextLong(-1, history.version() + 2);
+                if (v < history.oldestVersion() || v > history.version()) {
+                    assertNull(history.atVersion(v), "version " + v);
+                } else if (states.containsKey(v)) {
+                    assertEquals(states.get(v), state(history.atVersion(v)), "version " + v);
+                }
+                long t = random.nextLong(-1, clock.get() + 2);
+                if (t < history.oldestTime()) {
+                    assertNull(history.asOf(t), "time " + t);
+                } else {
+                    long last = 0;
+                    for (Map.Entry<Long, Long> e : times.entrySet()) {
+                        if (e.getValue() <= t) last = e.getKey();
+                    }
+                    assertEquals(states.get(last), state(history.asOf(t)), "time " + t);
+                }
+            }
+        }
+        assertTrue(history.oldestVersion() > 0, "never rolled over");
+    }
+
+    // Depths, then every raw entry's price and size, bids first.
+    private static List<Long> state(OrderBook book) {
+        List<Long> state = new ArrayList<>();
+        for (int side = 0; side < 2; side++) {
+            long depth = book.getData()[side];
+            state.add(depth);
+            for (int level = 0; level < depth; level++) {
+                state.add(book.getLevelPrice(side, level, false, false));
+                state.add(book.getLevelSize(side, level, false, false));
+            }
+        }
+        return state;
+    }
+}
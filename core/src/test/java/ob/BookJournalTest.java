@@ -0,0 +1,175 @@
+package ob;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.SplittableRandom;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class BookJournalTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void spilledEntriesSurviveCheckpointAndRecover() throws Exception {
+        OrderBook book = new OrderBook(2, OrderBook.OVERFLOW_SPILL);
+        ReferenceBook ref = new ReferenceBook(2);
+        BookJournal journal = BookJournal.open(dir, 64);
+        journal.attach(book);
+        for (int i = 0; i < 3; i++) {
+            book.addPrice(0, 100 - i, 10 + i, i, i);
+            ref.add(0, 100 - i, 10 + i, i, i);
+        }
+        journal.checkpoint();
+        book.addPrice(1, 105, 5, 3, 7);
+        ref.add(1, 105, 5, 3, 7);
+        ref.assertMatches(book);
+
+        OrderBook recovered = new OrderBook(2, OrderBook.OVERFLOW_SPILL);
+        BookJournal.open(dir, 64).recover(recovered);
+        assertEquals(2, recovered.getData()[0]);
+        assertEquals(1, recovered.getSpillDepth(0));
+        ref.assertMatches(recovered);
+
+        // The spilled entry refills the array once a better one goes.
+        recovered.removeLevelById(0, 0, 0);
+        ref.remove(0, 0, 0);
+        ref.assertMatches(recovered);
+    }
+
+    @Test
+    void randomSpillBookRecoversToReference() throws Exception {
+        SplittableRandom random = new SplittableRandom(3);
+        int depth = 8;
+        OrderBook book = new OrderBook(depth, OrderBook.OVERFLOW_SPILL);
+        ReferenceBook ref = new ReferenceBook(depth);
+        BookJournal journal = BookJournal.open(dir, 50);
+        journal.attach(book);
+        int[][] counts = new int[2][3];
+        for (int step = 0; step < 1_000; step++) {
+            int side = random.nextInt(2);
+            int id = random.nextInt(3);
+            if (random.nextInt(3) < 2) {
+                long price = side == 0 ? 100 - random.nextInt(8) : 101 + random.nextInt(8);
+                long size = 1 + random.nextInt(9);
+                book.addPrice(side, price, size, step, id);
+                ref.add(side, price, size, step, id);
+                counts[side][id]++;
+            } else if (counts[side][id] > 0) {
+                int level = random.nextInt(counts[side][id]);
+                book.removeLevelById(id, level, side);
+                ref.remove(id, level, side);
+                counts[side][id]--;
+            }
+        }
+        ref.assertMatches(book);
+
+        OrderBook recovered = new OrderBook(depth, OrderBook.OVERFLOW_SPILL);
+        BookJournal.open(dir, 50).recover(recovered);
+        ref.assertMatches(recovered);
+    }
+
+    @Test
+    void recoversFromAnOlderSnapshotWhenTheLatestNeverLanded() throws Exception {
+        int capacity = 16;
+        OrderBook book = new OrderBook(64);
+        ReferenceBook ref = new ReferenceBook(64);
+        BookJournal journal = BookJournal.open(dir, capacity);
+        journal.attach(book);
+        Path saved = dir.resolve("saved.bin");
+        for (int i = 0; i < 3 * capacity; i++) {
+            int side = i & 1;
+            book.addPrice(side, side == 0 ? 100 - i % 7 : 110 + i % 5, 1 + i, i, i % 3);
+            ref.add(side, side == 0 ? 100 - i % 7 : 110 + i % 5, 1 + i, i, i % 3);
+            if (i == capacity + 1) {
+                // The first background checkpoint covers the first segment; keep a copy of it.
+                journal.close();
+                Files.copy(dir.resolve("snapshot.bin"), saved);
+                journal = BookJournal.open(dir, capacity);
+                journal.attach(book);
+            }
+        }
+        journal.close();
+        Files.move(saved, dir.resolve("snapshot.bin"), StandardCopyOption.REPLACE_EXISTING);
+
+        OrderBook recovered = new OrderBook(64);
+        BookJournal.open(dir, capacity).recover(recovered);
+        ref.assertMatches(recovered);
+    }
+
+    @Test
+    void segmentSwitchesDoNotAllocateOnTheWriter() throws Exception {
+        OrderBook book = new OrderBook(64);
+        BookJournal journal = BookJournal.open(dir, 32);
+        for (int i = 0; i < 64; i++) book.addPrice(i & 1, (i & 1) == 0 ? 100 - i : 200 + i, 10, i, i);
+        journal.attach(book);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        for (int i = 0; i < 10_000; i++) book.modifyLevelById(i & 63, 0, i & 1, 1 + (i & 7));
+        long before = threads.getThreadAllocatedBytes(thread);
+        before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < 10_000; i++) book.modifyLevelById(i & 63, 0, i & 1, 1 + (i & 7));
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+        journal.close();
+        assertEquals(0, allocated);
+    }
+
+    @Test
+    void restoreIsCoveredByACheckpoint() throws Exception {
+        OrderBook source = new OrderBook(8);
+        source.addPrice(1, 120, 3, 0, 9);
+        OrderBook book = new OrderBook(8);
+        ReferenceBook ref = new ReferenceBook(8);
+        BookJournal journal = BookJournal.open(dir, 64);
+        journal.attach(book);
+        book.addPrice(0, 100, 10, 0, 1);
+        book.restore(source.getData());
+        book.addPrice(0, 99, 5, 1, 2);
+        ref.add(1, 120, 3, 0, 9);
+        ref.add(0, 99, 5, 1, 2);
+        ref.assertMatches(book);
+        journal.close();
+
+        OrderBook recovered = new OrderBook(8);
+        BookJournal.open(dir, 64).recover(recovered);
+        ref.assertMatches(recovered);
+    }
+
+    @Test
+    void failedBackgroundCheckpointIsReportedBeforeTheBookChanges() throws Exception {
+        // A directory where the snapshot is staged makes every snapshot write fail.
+        Files.createDirectories(dir.resolve("snapshot.tmp"));
+        OrderBook book = new OrderBook(16);
+        BookJournal journal = BookJournal.open(dir, 4);
+        journal.attach(book);
+        // The fifth add switches segments and starts the checkpoint that fails.
+        for (int i = 0; i < 5; i++) book.addPrice(0, 100 - i, 10, i, i);
+        // Adds fail once the failure is known, and at the latest when the segment fills again,
+        // but never after changing the book.
+        int depth = 5;
+        for (int i = 5; i < 9; i++) {
+            try {
+                book.addPrice(0, 100 - i, 10, i, i);
+                depth++;
+            } catch (IllegalStateException e) {
+                // Refused whole.
+            }
+            assertEquals(depth, book.getData()[0]);
+        }
+        assertTrue(depth < 9);
+
+        assertThrows(IllegalStateException.class, () -> book.removeLevelById(0, 0, 0));
+        assertEquals(100, book.getLevelPrice(0, 0, false, false));
+        long[] events = new long[OrderBook.EVENT_SIZE];
+        assertThrows(IllegalStateException.class, () -> book.applyBatch(events, 0, 1));
+        assertEquals(depth, book.getData()[0]);
+        assertThrows(IllegalStateException.class, journal::close);
+    }
+}
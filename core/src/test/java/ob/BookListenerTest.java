@@ -0,0 +1,121 @@
+package ob;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Test;
+
+class BookListenerTest {
+    private static final long NONE = Long.MIN_VALUE;
+
+    @Test
+    void callbacksFireOnlyWhenAWatchedLevelChanges() {
+        OrderBook book = new OrderBook(8);
+        Recorder calls = new Recorder();
+        book.setListener(calls, 2, false);
+
+        book.addPrice(0, 100, 10, 0, 1);
+        calls.expect("level 0/0 100x10", "top 100x10 " + NONE + "x" + NONE);
+        book.addPrice(0, 90, 5, 0, 2);
+        calls.expect("level 0/1 90x5");
+        book.addPrice(0, 80, 5, 0, 3);
+        book.modifyLevelById(3, 0, 0, 7);
+        calls.expect();
+        book.addPrice(1, 100, 4, 0, 4);
+        calls.expect("level 1/0 100x4", "top 100x10 100x4", "cross true");
+        book.removeLevelById(4, 0, 1);
+        calls.expect("level 1/0 " + NONE + "x" + NONE, "top 100x10 " + NONE + "x" + NONE, "cross false");
+        book.removeLevelById(1, 0, 0);
+        calls.expect("level 0/0 90x5", "level 0/1 80x7", "top 90x5 " + NONE + "x" + NONE);
+
+        book.setListener(null, 2, false);
+        book.addPrice(0, 110, 10, 0, 5);
+        calls.expect();
+    }
+
+    @Test
+    void conflatedDispatchDeliversTheLatestStateOnce() {
+        OrderBook book = new OrderBook(8);
+        book.addPrice(1, 105, 3, 0, 9);
+        Recorder calls = new Recorder();
+        book.setListener(calls, 1, true);
+        assertFalse(book.dispatch());
+
+        book.addPrice(0, 100, 10, 0, 1);
+        book.modifyLevelById(1, 0, 0, 20);
+        book.modifyLevelById(1, 0, 0, 30);
+        calls.expect();
+        assertTrue(book.dispatch());
+        calls.expect("level 0/0 100x30", "top 100x30 105x3");
+        assertFalse(book.dispatch());
+
+        // Changes that cancel out are flagged but deliver nothing.
+        book.modifyLevelById(1, 0, 0, 31);
+        book.modifyLevelById(1, 0, 0, 30);
+        assertFalse(book.dispatch());
+        calls.expect();
+    }
+
+    @Test
+    void conflatedDispatchOnAConsumerThreadEndsOnTheBooksState() throws Exception {
+        OrderBook book = new OrderBook(64);
+        AtomicBoolean done = new AtomicBoolean();
+        long[] top = new long[2];
+        List<Throwable> failures = new ArrayList<>();
+        Thread consumer = new Thread(() -> {
+            try {
+                while (!done.get()) book.dispatch();
+                book.dispatch();
+            } catch (Throwable e) {
+                failures.add(e);
+            }
+        });
+        consumer.start();
+        for (int round = 0; round < 200; round++) {
+            // Registered afresh each round, so the consumer keeps picking up new registrations.
+            book.setListener(new OrderBook.BookListener() {
+                @Override
+                public void onTop(long bidPrice, long bidSize, long askPrice, long askSize) {
+                    top[0] = bidPrice;
+                    top[1] = bidSize;
+                }
+            }, 1 + round % 3, true);
+            book.clear(0);
+            for (int i = 0; i < 50; i++) book.addPrice(0, 1000 + round * 50 + i, 1 + i, 0, i);
+        }
+        done.set(true);
+        consumer.join();
+        assertEquals(List.of(), failures);
+        assertEquals(book.getLevelPrice(0, 0, true, false), top[0]);
+        assertEquals(book.getLevelSize(0, 0, true, false), top[1]);
+    }
+
+    private static final class Recorder implements OrderBook.BookListener {
+        private final List<String> calls = new ArrayList<>();
+
+        @Override
+        public void onLevel(int side, int level, long price, long size) {
+            calls.add("level " + side + "/" + level + " " + price + "x" + size);
+        }
+
+        @Override
+        public void onTop(long bidPrice, long bidSize, long askPrice, long askSize) {
+            calls.add("top " + bidPrice + "x" + bidSize + " " + askPrice + "x" + askSize);
+        }
+
+        @Override
+        public void onCross(boolean crossed) {
+            calls.add("cross " + crossed);
+        }
+
+        void expect(String... expected) {
+            assertEquals(List.of(expected), calls);
+            calls.clear();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package ob;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class BookManagerTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void pooledBookForgetsItsPreviousOwner() throws IOException {
+        BookManager manager = new BookManager(1, 64, 16);
+        OrderBook book = manager.register(1, 16);
+        AtomicInteger calls = new AtomicInteger();
+        book.setListener(new OrderBook.BookListener() {
+            @Override
+            public void onTop(long bidPrice, long bidSize, long askPrice, long askSize) {
+                calls.incrementAndGet();
+            }
+        }, 1, false);
+        BookJournal journal = BookJournal.open(dir, 64);
+        journal.attach(book);
+        BookHistory history = new BookHistory(2, 8, System::nanoTime);
+        history.attach(book);
+        book.addPrice(0, 100, 10, 0, 1);
+        assertEquals(1, calls.get());
+
+        manager.unregister(1);
+        OrderBook reused = manager.register(2, 16);
+        assertSame(book, reused);
+        assertEquals(0, reused.getData()[0]);
+        reused.addPrice(0, 100, 10, 0, 1);
+        reused.clear(0);
+
+        assertEquals(1, calls.get());
+        assertEquals(1, journal.sequence());
+        assertEquals(1, history.version());
+        journal.close();
+    }
+
+    @Test
+    void fullRingRefusesAndWrapsAroundInOrder() {
+        BookManager manager = new BookManager(1, 4, 3);
+        OrderBook book = manager.register(1, 32);
+        long price = 100;
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 4; i++) assertTrue(manager.offer(1, OrderBook.OP_ADD, 0, price--, 1, 0, 0));
+            assertFalse(manager.offer(1, OrderBook.OP_ADD, 0, 0, 1, 0, 0));
+            assertEquals(3, manager.drain(0, 8));
+            // Three slots free again, two of them past the end of the ring.
+            assertTrue(manager.offer(1, OrderBook.OP_REMOVE, 0, 0, 0, 0, 0));
+            assertTrue(manager.offer(1, OrderBook.OP_ADD, 0, price--, 1, 0, 0));
+            assertTrue(manager.offer(1, OrderBook.OP_ADD, 0, price--, 1, 0, 0));
+            assertFalse(manager.offer(1, OrderBook.OP_ADD, 0, 0, 1, 0, 0));
+            assertEquals(3, manager.drain(0, 8));
+            assertEquals(1, manager.drain(0, 8));
+            assertEquals(0, manager.drain(0, 8));
+            // Six adds below every resting price, then the remove takes the best id-0 entry.
+            assertEquals(5 * (round + 1), book.getData()[0]);
+            assertEquals(99 - round, book.getLevelPrice(0, 0, false, false));
+        }
+        assertEquals(35, manager.applied(0));
+    }
+
+    @Test
+    void eachBookSeesItsUpdatesInOrderAcrossWindows() {
+        SplittableRandom random = new SplittableRandom(3);
+        BookManager manager = new BookManager(1, 64, 5);
+        OrderBook[] books = {manager.register(1, 16), manager.register(2, 16)};
+        OrderBook[] expected = {new OrderBook(16), new OrderBook(16)};
+        for (int round = 0; round < 400; round++) {
+            int b = random.nextInt(2);
+            long id = random.nextInt(3);
+            if (random.nextInt(3) < 2 || expected[b].getData()[0] == 0) {
+                long price = 100 - random.nextInt(10);
+                expected[b].addPrice(0, price, 1 + round, 0, id);
+                assertTrue(manager.offer(1 + b, OrderBook.OP_ADD, 0, price, 1 + round, 0, id));
+            } else {
+                expected[b].modifyLevelById(id, 0, 0, 1 + round);
+                assertTrue(manager.offer(1 + b, OrderBook.OP_MODIFY, 0, 0, 1 + round, 0, id));
+            }
+            if (round % 7 == 6) while (manager.drain(0, 64) > 0) { }
+            // Keeps the depth in bounds; the same clear goes through the ring.
+            if (expected[b].getData()[0] == 12) {
+                expected[b].clear(0);
+                assertTrue(manager.offer(1 + b, OrderBook.OP_CLEAR, 0, 0, 0, 0, 0));
+            }
+        }
+        while (manager.drain(0, 64) > 0) { }
+        for (int b = 0; b < 2; b++) {
+            long[] want = expected[b].getData();
+            long[] got = books[b].getData();
+            assertEquals(want[0], got[0]);
+            for (int i = 0; i < want[0]; i++) {
+                assertEquals(expected[b].getLevelPrice(0, i, false, false), books[b].getLevelPrice(0, i, false, false));
+                assertEquals(expected[b].getLevelSize(0, i, false, false), books[b].getLevelSize(0, i, false, false));
+                assertEquals(expected[b].getLevelId(0, i, false, false), books[b].getLevelId(0, i, false, false));
+            }
+        }
+    }
+
+    @Test
+    void unregisteredSymbolsAreDroppedAndRejectedUpdatesSkipped() {
+        BookManager manager = new BookManager(1, 16, 16);
+        OrderBook book = manager.register(1, 16);
+        manager.offer(1, OrderBook.OP_ADD, 0, 100, 10, 0, 1);
+        manager.offer(7, OrderBook.OP_ADD, 0, 100, 10, 0, 1);
+        manager.offer(1, OrderBook.OP_ADD, 2, 101, 10, 0, 2);
+        manager.offer(1, OrderBook.OP_ADD, 0, 99, 10, 0, 3);
+        manager.offer(1, 42, 0, 0, 0, 0, 0);
+        manager.offer(1, OrderBook.OP_MODIFY, 0, 0, 5, 0, 3);
+        assertEquals(6, manager.drain(0, 16));
+
+        assertEquals(1, manager.dropped(0));
+        assertEquals(2, manager.rejected(0));
+        assertEquals(6, manager.applied(0));
+        assertEquals(2, book.getData()[0]);
+        assertEquals(100, book.getLevelPrice(0, 0, false, false));
+        assertEquals(5, book.getLevelSize(0, 1, false, false));
+    }
+}
@@ -0,0 +1,41 @@
+package ob;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+@EnabledIfSystemProperty(named = "orderbook.metrics", matches = "true")
+class BookMetricsTest {
+    @Test
+    void rejectedAndMissedOperationsAreRecorded() {
+        OrderBook book = new OrderBook(1);
+        book.addPrice(0, 100, 10, 0, 1);
+        assertThrows(IllegalStateException.class, () -> book.addPrice(0, 99, 10, 0, 2));
+        book.modifyLevelById(1, 0, 0, 20);
+        book.modifyLevelById(7, 0, 0, 20);
+        book.removeLevelById(7, 0, 0);
+
+        BookMetrics.Snapshot s = book.getMetrics().snapshot();
+        assertEquals(2, s.count(BookMetrics.ADD));
+        assertEquals(2, s.count(BookMetrics.MODIFY));
+        assertEquals(1, s.count(BookMetrics.REMOVE));
+        long bucketed = 0;
+        for (int b = 0; b < BookMetrics.BUCKETS; b++) bucketed += s.bucket(BookMetrics.MODIFY, b);
+        assertEquals(2, bucketed);
+    }
+
+    @Test
+    void queriesRecordNothing() {
+        OrderBook book = new OrderBook(8);
+        for (int i = 0; i < 8; i++) book.addPrice(0, 100 - i, 10, i, i & 1);
+        BookMetrics.Snapshot before = book.getMetrics().snapshot();
+        book.getLevelSizeForIds(new long[] {0, 1}, 3, 0, true);
+        book.getLevelPriceForIds(new OrderBook.IdSet(1), 2, 0, false);
+        book.getVWAP(0, 0, 8, true, false);
+        BookMetrics.Snapshot after = book.getMetrics().snapshot();
+        assertEquals(before.scannedEntries(), after.scannedEntries());
+        for (int op = 0; op < BookMetrics.OPS; op++) assertEquals(before.count(op), after.count(op));
+    }
+}
@@ -0,0 +1,73 @@
+package ob;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class BookReplayTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void managerRunsReportNoLatencies() throws IOException {
+        Path file = dir.resolve("capture.bin");
+        write(file, 500);
+        BookReplay replay = BookReplay.open(file);
+
+        try (BookManager manager = new BookManager(1, 1 << 10, 64)) {
+            for (int s = 0; s < 2; s++) manager.register(s, 64);
+            manager.start();
+            BookReplay.Report report = replay.run(manager);
+            assertEquals(500, report.events());
+            assertFalse(report.hasLatencies());
+            assertTrue(report.toString().endsWith("p50 n/a, p99 n/a, p99.9 n/a"), report.toString());
+        }
+
+        for (int s = 0; s < 2; s++) replay.bind(s, new OrderBook(64));
+        BookReplay.Report report = replay.run();
+        assertTrue(report.hasLatencies());
+        assertFalse(report.toString().contains("n/a"), report.toString());
+    }
+
+    @Test
+    void writerFillsInTheRecordCount() throws IOException {
+        Path file = dir.resolve("capture.bin");
+        // More records than the writer buffers at once.
+        write(file, 20_002);
+        BookReplay replay = BookReplay.open(file);
+        assertEquals(20_002, replay.count());
+
+        OrderBook[] books = {new OrderBook(64), new OrderBook(64)};
+        for (int s = 0; s < 2; s++) replay.bind(s, books[s]);
+        assertEquals(20_002, replay.run().events());
+        // Each symbol's last record is an add whose remove never came.
+        for (OrderBook book : books) {
+            assertEquals(1, book.getData()[0]);
+            assertEquals(0, book.getData()[1]);
+        }
+    }
+
+    // Events records over symbols 0 and 1, in turn: each symbol adds an entry and then removes it.
+    private static void write(Path file, int events) throws IOException {
+        long[] event = new long[OrderBook.EVENT_SIZE];
+        try (BookReplay.Writer out = BookReplay.create(file)) {
+            for (int r = 0; r < events; r++) {
+                int pair = r / 2;
+                boolean add = pair % 2 == 0;
+                event[0] = add ? OrderBook.OP_ADD : OrderBook.OP_REMOVE;
+                event[1] = 0;
+                event[2] = add ? 100 + pair % 7 : 0;
+                event[3] = add ? 10 : 0;
+                event[4] = r;
+                event[5] = pair / 2;
+                out.append(r % 2, event, 0);
+            }
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package ob;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import org.junit.jupiter.api.Test;
+
+class ConsolidatedBookTest {
+    private static final OrderBook.BookListener NOOP = new OrderBook.BookListener() {};
+
+    @Test
+    void booksWithAListenerAreRejected() {
+        ConsolidatedBook consolidated = new ConsolidatedBook(2);
+        OrderBook book = new OrderBook(8);
+        book.setListener(NOOP, 1, false);
+        assertThrows(IllegalStateException.class, () -> consolidated.addVenue(book));
+        assertSame(NOOP, book.getListener());
+
+        OrderBook other = new OrderBook(8);
+        int venue = consolidated.addVenue(other);
+        assertThrows(IllegalStateException.class, () -> consolidated.addVenue(other));
+        consolidated.removeVenue(venue);
+        assertNull(other.getListener());
+    }
+
+    @Test
+    void removeVenueLeavesAListenerSetSince() {
+        ConsolidatedBook consolidated = new ConsolidatedBook(2);
+        OrderBook book = new OrderBook(8);
+        int venue = consolidated.addVenue(book);
+        book.setListener(NOOP, 1, false);
+        consolidated.removeVenue(venue);
+        assertSame(NOOP, book.getListener());
+    }
+
+    @Test
+    void randomVenuesMatchNaiveMerge() {
+        SplittableRandom random = new SplittableRandom(19);
+        ConsolidatedBook consolidated = new ConsolidatedBook(2);
+        List<OrderBook> books = new ArrayList<>();
+        for (int round = 0; round < 4_000; round++) {
+            int op = random.nextInt(100);
+            if (books.isEmpty() || op == 0 && books.size() < 9) {
+                OrderBook book = new OrderBook(8, OrderBook.OVERFLOW_GROW);
+                // A venue may join with entries already resting.
+                for (int i = random.nextInt(3); i > 0; i--) book.addPrice(i & 1, 100, 5, 0, 0);
+                assertEquals(books.size(), consolidated.addVenue(book));
+                books.add(book);
+            } else if (op == 1) {
+                int venue = random.nextInt(books.size());
+                consolidated.removeVenue(venue);
+                consolidated.removeVenue(venue);
+                // A removed venue's book no longer feeds the view.
+                books.get(venue).addPrice(0, 200, 1, 0, 0);
+            } else {
+                int venue = random.nextInt(books.size());
+                OrderBook book = books.get(venue);
+                int side = random.nextInt(2);
+                long id = random.nextInt(3);
+                if (op < 55) {
+                    long price = side == 0 ? 100 - random.nextInt(8) : 97 + random.nextInt(8);
+                    book.addPrice(side, price, 1 + random.nextInt(20), round, id);
+                } else if (op < 70) {
+                    book.modifyLevelById(id, random.nextInt(2), side, 1 + random.nextInt(20));
+                } else if (op < 97) {
+                    book.removeLevelById(id, random.nextInt(2), side);
+                } else {
+                    book.clear(side);
+                }
+            }
+            assertMatches(consolidated);
+        }
+    }
+
+    private static void assertMatches(ConsolidatedBook consolidated) {
+        List<List<long[]>> raw = List.of(merge(consolidated, 0), merge(consolidated, 1));
+        for (int side = 0; side < 2; side++) {
+            assertEquals(venuesQuoting(raw.get(side)), consolidated.getQuotingVenues(side), "quoting " + side);
+            long opposite = raw.get(1 - side).isEmpty() ? Long.MIN_VALUE : raw.get(1 - side).get(0)[0];
+            List<long[]> collapsed = collapse(raw.get(side));
+            List<long[]> uncrossed = new ArrayList<>();
+            for (long[] level : collapsed) {
+                boolean through = opposite != Long.MIN_VALUE && (side == 0 ? level[0] >= opposite : level[0] <= opposite);
+                if (!through) uncrossed.add(level);
+            }
+            assertLevels(consolidated, side, false, false, raw.get(side));
+            assertLevels(consolidated, side, true, false, collapsed);
+            assertLevels(consolidated, side, true, true, uncrossed);
+        }
+        for (boolean[] view : new boolean[][] {{false, false}, {true, false}, {true, true}}) {
+            long bid = price(consolidated, 0, view), ask = price(consolidated, 1, view);
+            long bidSize = consolidated.getLevelSize(0, 0, view[0], view[1]);
+            long askSize = consolidated.getLevelSize(1, 0, view[0], view[1]);
+            boolean both = bid != Long.MIN_VALUE && ask != Long.MIN_VALUE;
+            assertEquals(both ? (bid + ask) / 2.0 : Double.NaN, consolidated.getMidpoint(view[0], view[1]));
+            assertEquals(both ? ask - bid : Long.MIN_VALUE, consolidated.getSpread(view[0], view[1]));
+            assertEquals(both ? (double) (bidSize - askSize) / (bidSize + askSize) : Double.NaN,
+                    consolidated.getImbalance(view[0], view[1]));
+        }
+    }
+
+    private static long price(ConsolidatedBook consolidated, int side, boolean[] view) {
+        return consolidated.getLevelPrice(side, 0, view[0], view[1]);
+    }
+
+    private static int venuesQuoting(List<long[]> entries) {
+        return (int) entries.stream().mapToLong(e -> e[2]).distinct().count();
+    }
+
+    private static void assertLevels(ConsolidatedBook consolidated, int side, boolean collapse, boolean uncross, List<long[]> levels) {
+        for (int level = 0; level <= levels.size(); level++) {
+            String at = side + "/" + level + (collapse ? " collapsed" : "") + (uncross ? " uncrossed" : "");
+            long[] expected = level < levels.size() ? levels.get(level) : null;
+            assertEquals(expected == null ? Long.MIN_VALUE : expected[0], consolidated.getLevelPrice(side, level, collapse, uncross), "price " + at);
+            assertEquals(expected == null ? Long.MIN_VALUE : expected[1], consolidated.getLevelSize(side, level, collapse, uncross), "size " + at);
+            assertEquals(expected == null ? -1 : (int) expected[2], consolidated.getLevelVenue(side, level, collapse, uncross), "venue " + at);
+        }
+        for (int start = 0; start < 3; start++) {
+            int end = start + 4;
+            long size = 0;
+            double notional = 0;
+            for (int level = start; level < Math.min(end, levels.size()); level++) {
+                size += levels.get(level)[1];
+                notional += (double) levels.get(level)[0] * levels.get(level)[1];
+            }
+            ReferenceBook.assertVwap(size > 0 ? notional / size : Double.NaN, consolidated.getVWAP(side, start, end, collapse, uncross));
+        }
+    }
+
+    // Every registered venue's raw entries as (price, size, venue), best first, ties by venue.
+    private static List<long[]> merge(ConsolidatedBook consolidated, int side) {
+        List<long[]> entries = new ArrayList<>();
+        for (int venue = 0; venue < consolidated.getVenueCount(); venue++) {
+            OrderBook book = consolidated.getVenue(venue);
+            if (book == null) continue;
+            for (int i = 0; book.getLevelPrice(side, i, false, false) != Long.MIN_VALUE; i++) {
+                entries.add(new long[] {book.getLevelPrice(side, i, false, false), book.getLevelSize(side, i, false, false), venue});
+            }
+        }
+        // Stable, so a venue's own entries keep their order.
+        entries.sort((a, b) -> a[0] != b[0] ? Long.compare(side == 0 ? b[0] : a[0], side == 0 ? a[0] : b[0]) : Long.compare(a[2], b[2]));
+        return entries;
+    }
+
+    private static List<long[]> collapse(List<long[]> entries) {
+        List<long[]> levels = new ArrayList<>();
+        for (long[] e : entries) {
+            long[] last = levels.isEmpty() ? null : levels.get(levels.size() - 1);
+            if (last != null && last[0] == e[0]) last[1] += e[1];
+            else levels.add(e.clone());
+        }
+        return levels;
+    }
+}
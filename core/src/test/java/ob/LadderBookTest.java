@@ -0,0 +1,112 @@
+package ob;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.SplittableRandom;
+
+import org.junit.jupiter.api.Test;
+
+class LadderBookTest {
+    private static final long TICK = 5;
+    private static final long ANCHOR = 3;
+
+    @Test
+    void pricesOffTheGridAreRejected() {
+        LadderBook ladder = new LadderBook(TICK, ANCHOR, 64);
+        assertThrows(IllegalArgumentException.class, () -> ladder.setLevel(0, ANCHOR + 1, 10));
+        assertThrows(IllegalArgumentException.class, () -> ladder.setLevel(0, ANCHOR, -1));
+    }
+
+    @Test
+    void randomStreamMatchesOrderBookViews() {
+        // One OrderBook entry per price, keyed by the price, so its collapsed views are the ladder's.
+        SplittableRandom random = new SplittableRandom(23);
+        LadderBook ladder = new LadderBook(TICK, ANCHOR, 64);
+        OrderBook book = new OrderBook(16, OrderBook.OVERFLOW_GROW);
+        long mid = -100;
+        long lowest = mid, highest = mid;
+        for (int round = 0; round < 12_000; round++) {
+            // The market drifts through many ring lengths, negative ticks first.
+            if (round % 8 == 0) mid++;
+            lowest = Math.min(lowest, mid);
+            highest = Math.max(highest, mid);
+            int side = random.nextInt(2);
+            int op = random.nextInt(100);
+            if (op < 40) {
+                // Up to three ticks through the mid, so the sides cross and uncross has work to do.
+                long k = side == 0 ? mid + 3 - random.nextInt(24) : mid - 3 + random.nextInt(24);
+                set(ladder, book, side, price(k), 1 + random.nextInt(100));
+            } else if (op < 60) {
+                long k = side == 0 ? mid + 3 - random.nextInt(24) : mid - 3 + random.nextInt(24);
+                long delta = random.nextInt(101) - 50;
+                long size = Math.max(ladder.getSizeAt(side, price(k)) + delta, 0);
+                apply(book, side, price(k), ladder.getSizeAt(side, price(k)) != 0, size);
+                ladder.addLevel(side, price(k), delta);
+            } else if (op < 96) {
+                if (ladder.getDepth(side) > 0) {
+                    long price = ladder.getLevelPrice(side, random.nextInt(ladder.getDepth(side)), true, false);
+                    ladder.removeLevel(side, price);
+                    book.removeLevelById(price, 0, side);
+                }
+            } else if (op < 97) {
+                ladder.clear(side);
+                book.clear(side);
+            } else if (op < 99) {
+                // A new best well outside the window, or a far worst level that forces growth.
+                long k = random.nextBoolean() ? (side == 0 ? mid + 40 : mid - 40) : (side == 0 ? mid - 150 : mid + 150);
+                set(ladder, book, side, price(k), 1 + random.nextInt(100));
+            } else {
+                // Drop levels far from the market so the window keeps moving instead of growing.
+                for (int s = 0; s < 2; s++) {
+                    for (int level = ladder.getDepth(s) - 1; level >= 0; level--) {
+                        long price = ladder.getLevelPrice(s, level, true, false);
+                        if (Math.abs(price - price(mid)) > 60 * TICK) set(ladder, book, s, price, 0);
+                    }
+                }
+            }
+            assertMatches(ladder, book);
+        }
+        assertTrue(ladder.getCapacity() > 64, "never grew");
+        assertTrue(highest - lowest > 4L * ladder.getCapacity(), "never wrapped");
+    }
+
+    private static long price(long k) {
+        return ANCHOR + k * TICK;
+    }
+
+    private static void set(LadderBook ladder, OrderBook book, int side, long price, long size) {
+        apply(book, side, price, ladder.getSizeAt(side, price) != 0, size);
+        ladder.setLevel(side, price, size);
+    }
+
+    private static void apply(OrderBook book, int side, long price, boolean present, long size) {
+        if (size == 0) {
+            if (present) book.removeLevelById(price, 0, side);
+        } else if (present) {
+            book.modifyLevelById(price, 0, side, size);
+        } else {
+            book.addPrice(side, price, size, 0, price);
+        }
+    }
+
+    private static void assertMatches(LadderBook ladder, OrderBook book) {
+        for (int side = 0; side < 2; side++) {
+            assertEquals(book.getData()[side], ladder.getDepth(side), "depth " + side);
+            for (boolean uncross : new boolean[] {false, true}) {
+                for (int level = 0; level <= ladder.getDepth(side); level++) {
+                    String at = side + "/" + level + (uncross ? " uncrossed" : "");
+                    assertEquals(book.getLevelPrice(side, level, true, uncross), ladder.getLevelPrice(side, level, true, uncross), "price " + at);
+                    assertEquals(book.getLevelSize(side, level, true, uncross), ladder.getLevelSize(side, level, true, uncross), "size " + at);
+                }
+                ReferenceBook.assertVwap(book.getVWAP(side, 1, 6, true, uncross), ladder.getVWAP(side, 1, 6, true, uncross));
+            }
+        }
+        for (boolean uncross : new boolean[] {false, true}) {
+            assertEquals(book.getMidpoint(true, uncross), ladder.getMidpoint(true, uncross));
+            assertEquals(book.getSpread(true, uncross), ladder.getSpread(true, uncross));
+            assertEquals(book.getImbalance(true, uncross), ladder.getImbalance(true, uncross));
+        }
+    }
+}
@@ -0,0 +1,532 @@
+package ob;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+import static ob.OrderBook.EVENT_SIZE;
+
+class OrderBookTest {
+    private static final long HIGH = 1L << 32;
+
+    @Test
+    void idsDifferingInHighBitsKeepSeparateIndexEntries() {
+        OrderBook book = new OrderBook(8);
+        ReferenceBook ref = new ReferenceBook(8);
+        long[] ids = {1, 1 + HIGH, 1 + (5 * HIGH), 1 - HIGH};
+        for (int i = 0; i < ids.length; i++) {
+            book.addPrice(0, 100 - i, 10 + i, i, ids[i]);
+            ref.add(0, 100 - i, 10 + i, i, ids[i]);
+        }
+
+        book.modifyLevelById(1, 0, 0, 77);
+        ref.modify(1, 0, 0, 77);
+        ref.assertMatches(book);
+        assertEquals(77, book.getLevelSize(0, 0, false, false));
+        assertEquals(11, book.getLevelSize(0, 1, false, false));
+
+        book.removeLevelById(1 + HIGH, 0, 0);
+        ref.remove(1 + HIGH, 0, 0);
+        ref.assertMatches(book);
+
+        book.clearById(1 - HIGH, 0);
+        ref.clearById(1 - HIGH, 0);
+        ref.assertMatches(book);
+    }
+
+    @Test
+    void randomHighBitIdsMatchReference() {
+        SplittableRandom random = new SplittableRandom(7);
+        long[] ids = {3, 3 + HIGH, 3 + 2 * HIGH, 3 | Long.MIN_VALUE, 9};
+        OrderBook book = new OrderBook(64);
+        ReferenceBook ref = new ReferenceBook(64);
+        int[][] counts = new int[2][ids.length];
+        for (int step = 0; step < 5_000; step++) {
+            int side = random.nextInt(2);
+            int k = random.nextInt(ids.length);
+            int op = random.nextInt(10);
+            if (op < 5 && ref.depth(side) < 64) {
+                long price = side == 0 ? 1000 - random.nextInt(20) : 1010 + random.nextInt(20);
+                long size = 1 + random.nextInt(100);
+                book.addPrice(side, price, size, step, ids[k]);
+                ref.add(side, price, size, step, ids[k]);
+                counts[side][k]++;
+            } else if (op < 8 && counts[side][k] > 0) {
+                int level = random.nextInt(counts[side][k]);
+                long size = 1 + random.nextInt(100);
+                book.modifyLevelById(ids[k], level, side, size);
+                ref.modify(ids[k], level, side, size);
+            } else if (counts[side][k] > 0) {
+                int level = random.nextInt(counts[side][k]);
+                book.removeLevelById(ids[k], level, side);
+                ref.remove(ids[k], level, side);
+                counts[side][k]--;
+            }
+            ref.assertMatches(book);
+        }
+    }
+
+    @Test
+    void batchThatThrowsAfterAFullStagingRunLeavesBookConsistent() {
+        OrderBook book = new OrderBook(4);
+        ReferenceBook ref = new ReferenceBook(4);
+        long[] events = new long[5 * EVENT_SIZE];
+        for (int i = 0; i < 5; i++) {
+            event(events, i, OrderBook.OP_ADD, 0, 100 - i, 10, i, i);
+            if (i < 4) ref.add(0, 100 - i, 10, i, i);
+        }
+        assertThrows(IllegalStateException.class, () -> book.applyBatch(events, 0, 5));
+        ref.assertMatches(book);
+        assertEquals(100, book.getLevelPrice(0, 0, true, false));
+        assertEquals(98.5, book.getVWAP(0, 0, 4, true, false));
+    }
+
+    @Test
+    void rejectedWritesLeaveTheBookReadable() throws Exception {
+        OrderBook book = new OrderBook(8, OrderBook.OVERFLOW_GROW);
+        book.addPrice(0, 100, 10, 0, 1);
+        book.addPrice(1, 102, 10, 0, 2);
+        long[] malformed = book.getData().clone();
+        malformed[1] = 1_000;
+
+        assertThrows(IllegalArgumentException.class, () -> book.removeLevelById(1, 0, 2));
+        assertThrows(IllegalArgumentException.class, () -> book.addPrice(-1, 100, 10, 0, 1));
+        assertThrows(IllegalArgumentException.class, () -> book.modifyLevelById(1, 0, 2, 5));
+        assertThrows(IllegalArgumentException.class, () -> book.clearById(1, 2));
+        assertThrows(IllegalArgumentException.class, () -> book.clear(2));
+        assertThrows(IllegalArgumentException.class, () -> book.expireBefore(2, 10));
+        assertThrows(IllegalArgumentException.class, () -> book.restore(malformed));
+        long[] events = new long[2 * EVENT_SIZE];
+        event(events, 0, OrderBook.OP_ADD, 0, 99, 10, 0, 3);
+        event(events, 1, OrderBook.OP_ADD, 2, 99, 10, 0, 4);
+        assertThrows(IllegalArgumentException.class, () -> book.applyBatch(events, 0, 2));
+
+        assertTrue(book.tryRead() != 0);
+        double[] mid = new double[1];
+        Thread reader = new Thread(() -> mid[0] = book.read(OrderBook::getMidpoint, true, false));
+        reader.start();
+        reader.join(5_000);
+        assertTrue(!reader.isAlive(), "reader spun on an odd version");
+        assertEquals(101.0, mid[0]);
+        assertEquals(99, book.getLevelPrice(0, 1, false, false));
+    }
+
+    @Test
+    void randomBatchesMatchReference() {
+        SplittableRandom random = new SplittableRandom(11);
+        int depth = 32;
+        OrderBook book = new OrderBook(depth);
+        ReferenceBook ref = new ReferenceBook(depth);
+        int[][] counts = new int[2][4];
+        long[] events = new long[16 * EVENT_SIZE];
+        for (int round = 0; round < 2_000; round++) {
+            int n = 1 + random.nextInt(16);
+            int rejectedAt = -1;
+            for (int i = 0; i < n; i++) {
+                int side = random.nextInt(2);
+                int id = random.nextInt(4);
+                int op = random.nextInt(21);
+                if (op < 11) {
+                    long price = side == 0 ? 1000 - random.nextInt(10) : 995 + random.nextInt(10);
+                    event(events, i, OrderBook.OP_ADD, side, price, 1 + random.nextInt(50), round, id);
+                    if (ref.depth(side) + ref.spilled(side) == depth && rejectedAt < 0) rejectedAt = i;
+                    if (rejectedAt < 0) {
+                        ref.add(side, price, events[i * EVENT_SIZE + 3], round, id);
+                        counts[side][id]++;
+                    }
+                } else if (op < 15 && counts[side][id] > 0) {
+                    int level = random.nextInt(counts[side][id]);
+                    event(events, i, OrderBook.OP_MODIFY, side, level, 1 + random.nextInt(50), 0, id);
+                    if (rejectedAt < 0) ref.modify(id, level, side, events[i * EVENT_SIZE + 3]);
+                } else if (op < 19 && counts[side][id] > 0) {
+                    int level = random.nextInt(counts[side][id]);
+                    event(events, i, OrderBook.OP_REMOVE, side, level, 0, 0, id);
+                    if (rejectedAt < 0) {
+                        ref.remove(id, level, side);
+                        counts[side][id]--;
+                    }
+                } else if (op == 20) {
+                    // Entries carry their round as timestamp; expire the last few rounds' or none.
+                    long cutoff = round - random.nextInt(4);
+                    event(events, i, OrderBook.OP_EXPIRE, side, 0, 0, cutoff, 0);
+                    if (rejectedAt < 0) {
+                        ref.expire(side, cutoff);
+                        for (int k = 0; k < 4; k++) counts[side][k] = ref.count(k, side);
+                    }
+                } else {
+                    event(events, i, OrderBook.OP_CLEAR_ID, side, 0, 0, 0, id);
+                    if (rejectedAt < 0) {
+                        ref.clearById(id, side);
+                        counts[side][id] = 0;
+                    }
+                }
+            }
+            if (rejectedAt >= 0) assertThrows(IllegalStateException.class, () -> book.applyBatch(events, 0, n));
+            else book.applyBatch(events, 0, n);
+            ref.assertMatches(book);
+        }
+    }
+
+    @Test
+    void expiryRemovesOldEntriesPerSideIncludingSpilled() {
+        OrderBook book = new OrderBook(4, OrderBook.OVERFLOW_SPILL);
+        ReferenceBook ref = new ReferenceBook(4);
+        for (int i = 0; i < 10; i++) {
+            for (int side = 0; side < 2; side++) {
+                long price = side == 0 ? 100 - i : 110 + i;
+                // Timestamps 0 to 9 out of price order, so old entries sit in the array and the spill.
+                long ts = (i * 7) % 10;
+                book.addPrice(side, price, 10 + i, ts, i);
+                ref.add(side, price, 10 + i, ts, i);
+            }
+        }
+        assertEquals(6, book.getSpillDepth(0));
+
+        assertEquals(4, book.expireBefore(0, 4));
+        ref.expire(0, 4);
+        ref.assertMatches(book);
+        assertEquals(0, book.oldestTimestamp(1));
+        assertEquals(2 + 6, book.expireBefore(6));
+        ref.expire(0, 6);
+        ref.expire(1, 6);
+        ref.assertMatches(book);
+        for (int side = 0; side < 2; side++) assertEquals(ref.oldest(side), book.oldestTimestamp(side));
+    }
+
+    @Test
+    void expiryWatermarkFollowsAddsPassesAndRestores() {
+        OrderBook book = new OrderBook(8);
+        book.addPrice(0, 100, 10, 50, 1);
+        book.addPrice(0, 99, 10, 60, 2);
+        // Nothing is older than the watermark, so this returns without scanning.
+        assertEquals(0, book.expireBefore(0, 50));
+        book.addPrice(0, 98, 10, 20, 3);
+        assertEquals(20, book.oldestTimestamp(0));
+        assertEquals(1, book.expireBefore(0, 30));
+        assertEquals(50, book.oldestTimestamp(0));
+        // Removing the oldest entry leaves a low bound; the next pass makes it exact again.
+        book.removeLevelById(1, 0, 0);
+        assertEquals(50, book.oldestTimestamp(0));
+        assertEquals(0, book.expireBefore(0, 55));
+        assertEquals(60, book.oldestTimestamp(0));
+        assertEquals(Long.MAX_VALUE, book.oldestTimestamp(1));
+
+        OrderBook copy = new OrderBook(8);
+        copy.restore(book.getData());
+        assertEquals(60, copy.oldestTimestamp(0));
+        assertEquals(Long.MAX_VALUE, copy.oldestTimestamp(1));
+        assertEquals(0, copy.expireBefore(60));
+        assertEquals(1, copy.expireBefore(61));
+        assertEquals(0, copy.getData()[0]);
+    }
+
+    @Test
+    void batchedExpiryMergesStagedAddsFirst() {
+        OrderBook book = new OrderBook(8);
+        ReferenceBook ref = new ReferenceBook(8);
+        long[] events = new long[5 * EVENT_SIZE];
+        event(events, 0, OrderBook.OP_ADD, 0, 100, 10, 5, 1);
+        event(events, 1, OrderBook.OP_ADD, 0, 99, 10, 1, 2);
+        event(events, 2, OrderBook.OP_ADD, 1, 101, 10, 1, 3);
+        event(events, 3, OrderBook.OP_EXPIRE, 0, 0, 0, 3, 0);
+        event(events, 4, OrderBook.OP_ADD, 0, 98, 10, 2, 4);
+        book.applyBatch(events, 0, 5);
+        ref.add(0, 100, 10, 5, 1);
+        ref.add(0, 99, 10, 1, 2);
+        ref.add(1, 101, 10, 1, 3);
+        ref.expire(0, 3);
+        ref.add(0, 98, 10, 2, 4);
+        ref.assertMatches(book);
+        assertEquals(2, book.oldestTimestamp(0));
+        assertEquals(1, book.oldestTimestamp(1));
+    }
+
+    @Test
+    void uncrossedVwapWeighsOnlyLevelsBehindTheOppositeBest() {
+        OrderBook book = new OrderBook(8);
+        ReferenceBook ref = new ReferenceBook(8);
+        long[][] adds = {{0, 101, 10}, {0, 100, 10}, {0, 99, 10}, {0, 99, 10}, {1, 100, 10}, {1, 102, 10}, {1, 103, 10}};
+        for (int i = 0; i < adds.length; i++) {
+            book.addPrice((int) adds[i][0], adds[i][1], adds[i][2], i, i);
+            ref.add((int) adds[i][0], adds[i][1], adds[i][2], i, i);
+        }
+        ref.assertMatches(book);
+        assertEquals(99.0, book.getVWAP(0, true));
+        assertEquals(102.5, book.getVWAP(1, true));
+        assertEquals(book.getVWAP(0, 0, 8, true, true), book.getVWAP(0, true));
+        assertEquals(book.getVWAP(1, 0, 8, true, true), OrderBook.getVWAP(book.getData(), 1, true));
+    }
+
+    @Test
+    void encodedBooksDecodeToTheRealizedArray() {
+        SplittableRandom random = new SplittableRandom(13);
+        ByteBuffer out = ByteBuffer.allocate(1 << 16);
+        for (int round = 0; round < 200; round++) {
+            OrderBook book = new OrderBook(4, OrderBook.OVERFLOW_GROW);
+            for (int i = random.nextInt(40); i > 0; i--) {
+                int side = random.nextInt(2);
+                // Negative and extreme values, so every zigzag and varint width is exercised.
+                long price = random.nextInt(4) == 0 ? random.nextLong() : (side == 0 ? 100 - random.nextInt(6) : 97 + random.nextInt(6));
+                long ts = random.nextBoolean() ? random.nextLong() : random.nextInt(1_000);
+                long id = random.nextInt(3) == 0 ? random.nextLong() : random.nextInt(5);
+                book.addPrice(side, price, 1 + random.nextInt(1 << 20), ts, id);
+            }
+            out.clear();
+            int n = OrderBook.encode(book.getData(), out);
+            assertEquals(out.position(), n);
+            out.flip();
+            long[] decoded = OrderBook.decode(out);
+            assertEquals(0, out.remaining());
+            long[] realized = OrderBook.realize(book.getData());
+            assertEquals(realized.length, decoded.length);
+            for (int side = 0; side < 2; side++) {
+                for (boolean[] view : new boolean[][] {{false, false}, {true, false}, {true, true}}) {
+                    for (int level = 0; level <= book.getData()[side]; level++) {
+                        String at = side + "/" + level + " " + view[0] + " " + view[1];
+                        assertEquals(OrderBook.getLevelPrice(realized, side, level, view[0], view[1]), OrderBook.getLevelPrice(decoded, side, level, view[0], view[1]), at);
+                        assertEquals(OrderBook.getLevelSize(realized, side, level, view[0], view[1]), OrderBook.getLevelSize(decoded, side, level, view[0], view[1]), at);
+                        assertEquals(OrderBook.getLevelTimestamp(realized, side, level, view[0], view[1]), OrderBook.getLevelTimestamp(decoded, side, level, view[0], view[1]), at);
+                        assertEquals(OrderBook.getLevelId(realized, side, level, view[0], view[1]), OrderBook.getLevelId(decoded, side, level, view[0], view[1]), at);
+                    }
+                }
+            }
+        }
+        out.clear();
+        out.put((byte) 1).flip();
+        assertThrows(IllegalArgumentException.class, () -> OrderBook.decode(out));
+    }
+
+    @Test
+    void seqlockStampsChangeWithEveryWrite() {
+        OrderBook book = new OrderBook(4, OrderBook.OVERFLOW_GROW);
+        long stamp = book.tryRead();
+        assertTrue(stamp != 0 && (stamp & 1) == 0);
+        assertTrue(book.validate(stamp));
+        assertFalse(book.validate(0));
+
+        book.addPrice(0, 100, 10, 0, 1);
+        assertFalse(book.validate(stamp));
+        long next = book.tryRead();
+        assertTrue(next > stamp && (next & 1) == 0);
+        // A rejected write changes nothing, so it leaves the stamp valid.
+        book.modifyLevelById(9, 0, 0, 5);
+        assertTrue(book.validate(next));
+
+        long[] copy = new long[book.getData().length];
+        assertEquals(next, book.copyTo(copy));
+        assertArrayEquals(book.getData(), copy);
+        for (int i = 0; i < 8; i++) book.addPrice(1, 101 + i, 10, 0, 2);
+        assertThrows(IllegalArgumentException.class, () -> book.copyTo(copy));
+    }
+
+    @Test
+    void copiesOnReaderThreadsSeeOnlyWholeBatches() throws Exception {
+        // Like the ForIds test below, but every copy must be one of the two states in full.
+        OrderBook book = new OrderBook(64);
+        long[][] states = {batch(3), batch(5)};
+        long[][] expected = new long[2][];
+        for (int round = 0; round < 3; round++) {
+            for (int k = 0; k < 2; k++) {
+                book.applyBatch(states[k], 0, states[k].length / EVENT_SIZE);
+                expected[k] = OrderBook.realize(book.getData());
+            }
+        }
+
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicLong bad = new AtomicLong();
+        AtomicLong copies = new AtomicLong();
+        Thread reader = new Thread(() -> {
+            long[] copy = new long[book.getData().length];
+            try {
+                while (!done.get()) {
+                    book.copyTo(copy);
+                    long[] realized = OrderBook.realize(copy);
+                    if (!Arrays.equals(realized, expected[0]) && !Arrays.equals(realized, expected[1])) bad.incrementAndGet();
+                    copies.incrementAndGet();
+                }
+            } catch (RuntimeException e) {
+                bad.incrementAndGet();
+            }
+        });
+        reader.start();
+        for (int i = 0; i < 20_000 || copies.get() < 100; i++) book.applyBatch(states[i & 1], 0, states[i & 1].length / EVENT_SIZE);
+        done.set(true);
+        reader.join();
+        assertEquals(0, bad.get());
+    }
+
+    @Test
+    void readOverloadsMatchDirectQueries() {
+        OrderBook book = new OrderBook(8);
+        // One side empty, so the top-of-book queries return NaN through the reads too.
+        book.addPrice(0, 100, 10, 0, 1);
+        book.addPrice(0, 99, 30, 0, 2);
+        assertEquals(99, book.read(OrderBook::getLevelPrice, 0, 1, false, false));
+        assertEquals(Long.MIN_VALUE, book.read(OrderBook::getLevelPrice, 1, 0, true, true));
+        assertEquals(Double.NaN, book.read(OrderBook::getMidpoint, true, false));
+        assertEquals(Double.NaN, book.read(data -> OrderBook.getImbalance(data, false, false)));
+
+        book.addPrice(1, 102, 10, 0, 3);
+        assertEquals(101.0, book.read(OrderBook::getMidpoint, false, false));
+        assertEquals(book.getVWAP(0, false), book.read(data -> OrderBook.getVWAP(data, 0, false)));
+        assertEquals(0.0, book.read(data -> OrderBook.getImbalance(data, false, false)));
+        assertEquals(-0.5, book.read(data -> (double) -OrderBook.getSpread(data, false, false) / 4));
+    }
+
+    @Test
+    void forIdsQueriesOnReaderThreadsSeeOnlyWholeBatches() throws Exception {
+        // The writer flips the book between two states; each ForIds answer must match one of them.
+        OrderBook book = new OrderBook(64);
+        long[][] states = {batch(3), batch(5)};
+        long[] ids = {1, 2};
+        long[] expected = new long[2];
+        for (int k = 0; k < 2; k++) {
+            book.applyBatch(states[k], 0, states[k].length / EVENT_SIZE);
+            expected[k] = book.getLevelSizeForIds(ids, 1, 0, true);
+        }
+        assertTrue(expected[0] != expected[1]);
+
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicLong bad = new AtomicLong();
+        Thread[] readers = new Thread[3];
+        for (int r = 0; r < readers.length; r++) {
+            readers[r] = new Thread(() -> {
+                long[] mine = {1, 2, 7, 9, 11, 13, 15, 17, 19, 21}; // grows the thread's scratch
+                try {
+                    while (!done.get()) {
+                        long size = book.getLevelSizeForIds(ids, 1, 0, true);
+                        if (size != expected[0] && size != expected[1]) bad.incrementAndGet();
+                        book.getLevelSizeForIds(mine, 0, 0, true);
+                    }
+                } catch (RuntimeException e) {
+                    bad.incrementAndGet();
+                }
+            });
+            readers[r].start();
+        }
+        for (int i = 0; i < 20_000; i++) book.applyBatch(states[i & 1], 0, states[i & 1].length / EVENT_SIZE);
+        done.set(true);
+        for (Thread reader : readers) reader.join();
+        assertEquals(0, bad.get());
+    }
+
+    @Test
+    void forIdsQueriesOnReaderThreadsSurviveIndexRehashes() throws Exception {
+        // Every round grows a fresh book and its id index many times under a reader.
+        for (int round = 0; round < 40; round++) {
+            OrderBook book = new OrderBook(4, OrderBook.OVERFLOW_GROW);
+            book.addPrice(0, 1_000, 7, 0, 1);
+            AtomicBoolean done = new AtomicBoolean();
+            AtomicLong bad = new AtomicLong();
+            Thread reader = new Thread(() -> {
+                long[] ids = {1, 2};
+                try {
+                    while (!done.get()) {
+                        if (book.getLevelSizeForIds(ids, 0, 0, false) != 7) bad.incrementAndGet();
+                    }
+                } catch (RuntimeException e) {
+                    bad.incrementAndGet();
+                }
+            });
+            reader.start();
+            for (int i = 0; i < 1_000; i++) book.addPrice(0, 999 - i, 1, i, 100 + i);
+            done.set(true);
+            reader.join();
+            assertEquals(0, bad.get());
+        }
+    }
+
+    @Test
+    void forIdsMergeMatchesScan() {
+        SplittableRandom random = new SplittableRandom(5);
+        OrderBook book = new OrderBook(128);
+        long[][] sets = {{0}, {1, 3}, {0, 2, 3}, {3, 3, 1}};
+        for (int step = 0; step < 3_000; step++) {
+            int side = random.nextInt(2);
+            if (book.getData()[side] < 128 && random.nextInt(3) > 0) {
+                book.addPrice(side, side == 0 ? 100 - random.nextInt(30) : 100 + random.nextInt(30), 1 + random.nextInt(9), step, random.nextInt(5));
+            } else if (book.getData()[side] > 0) {
+                book.removeLevelById(book.getLevelId(side, random.nextInt((int) book.getData()[side]), false, false), 0, side);
+            }
+            long[] data = book.getData();
+            for (long[] ids : sets) {
+                OrderBook.IdSet set = new OrderBook.IdSet(ids);
+                // Deep levels against a shallow side take the scan, shallow ones the merge.
+                for (int level : new int[] {0, 1, 2, 3, 20, 50}) {
+                    for (boolean collapsed : new boolean[] {false, true}) {
+                        assertEquals(OrderBook.getLevelPriceForIds(data, ids, level, side, collapsed), book.getLevelPriceForIds(ids, level, side, collapsed));
+                        assertEquals(OrderBook.getLevelSizeForIds(data, ids, level, side, collapsed), book.getLevelSizeForIds(ids, level, side, collapsed));
+                        assertEquals(OrderBook.getLevelTimestampForIds(data, ids, level, side, collapsed), book.getLevelTimestampForIds(ids, level, side, collapsed));
+                        assertEquals(OrderBook.getLevelPriceForIds(data, ids, level, side, collapsed), book.getLevelPriceForIds(set, level, side, collapsed));
+                        assertEquals(OrderBook.getLevelSizeForIds(data, ids, level, side, collapsed), book.getLevelSizeForIds(set, level, side, collapsed));
+                        assertEquals(OrderBook.getLevelTimestampForIds(data, ids, level, side, collapsed), book.getLevelTimestampForIds(set, level, side, collapsed));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void modifiesKeepFenwickSumsExactAtEveryDepth() {
+        SplittableRandom random = new SplittableRandom(9);
+        int depth = 300;
+        OrderBook book = new OrderBook(depth);
+        ReferenceBook ref = new ReferenceBook(depth);
+        for (int i = 0; i < depth; i++) {
+            int side = i & 1;
+            long price = side == 0 ? 5000 - random.nextInt(200) : 5001 + random.nextInt(200);
+            long size = 1 + random.nextInt(1000);
+            book.addPrice(side, price, size, i, i);
+            ref.add(side, price, size, i, i);
+        }
+        long[] events = new long[8 * EVENT_SIZE];
+        for (int round = 0; round < 500; round++) {
+            int id = random.nextInt(depth);
+            long size = 1 + random.nextInt(1000);
+            book.modifyLevelById(id, 0, id & 1, size);
+            ref.modify(id, 0, id & 1, size);
+            // A batch that modifies a clean side, then dirties it with an add and modifies again.
+            int side = random.nextInt(2);
+            int a = 2 * random.nextInt(depth / 2) + side;
+            int b = 2 * random.nextInt(depth / 2) + side;
+            long price = side == 0 ? 5000 - random.nextInt(200) : 5001 + random.nextInt(200);
+            event(events, 0, OrderBook.OP_MODIFY, side, 0, 7 + round, 0, a);
+            event(events, 1, OrderBook.OP_ADD, side, price, 3, round, depth + round);
+            event(events, 2, OrderBook.OP_MODIFY, side, 0, 11 + round, 0, b);
+            event(events, 3, OrderBook.OP_REMOVE, side, 0, 0, 0, depth + round);
+            book.applyBatch(events, 0, 4);
+            ref.modify(a, 0, side, 7 + round);
+            ref.modify(b, 0, side, 11 + round);
+            if (round % 50 == 0) ref.assertMatches(book);
+        }
+        ref.assertMatches(book);
+    }
+
+    // Clears the book and adds entries for ids 1 to 3 on the bid side, sized by scale.
+    private static long[] batch(int scale) {
+        long[] events = new long[13 * EVENT_SIZE];
+        event(events, 0, OrderBook.OP_CLEAR, 0, 0, 0, 0, 0);
+        for (int i = 1; i < 13; i++) event(events, i, OrderBook.OP_ADD, 0, 100 - i / 3, scale * i, i, 1 + i % 3);
+        return events;
+    }
+
+    private static void event(long[] events, int i, int op, int side, long a, long size, long ts, long id) {
+        int e = i * EVENT_SIZE;
+        events[e] = op;
+        events[e + 1] = side;
+        events[e + 2] = a;
+        events[e + 3] = size;
+        events[e + 4] = ts;
+        events[e + 5] = id;
+    }
+}
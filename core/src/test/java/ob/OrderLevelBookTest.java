@@ -0,0 +1,199 @@
+package ob;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import org.junit.jupiter.api.Test;
+
+class OrderLevelBookTest {
+    @Test
+    void ordersQueueInArrivalOrderAndKeepPriorityOnModify() {
+        OrderLevelBook book = new OrderLevelBook(16);
+        book.add(1, 0, 100, 10, 0);
+        book.add(2, 0, 100, 20, 1);
+        book.add(3, 0, 101, 5, 2);
+        book.add(4, 0, 100, 30, 3);
+        assertEquals(Double.NaN, book.getMidpoint());
+        assertEquals(Long.MIN_VALUE, book.getSpread());
+
+        assertEquals(101, book.getLevelPrice(0, 0));
+        assertEquals(1, book.getFirstOrder(0, 1));
+        assertEquals(2, book.getNextOrder(1));
+        assertEquals(4, book.getNextOrder(2));
+        assertEquals(Long.MIN_VALUE, book.getNextOrder(4));
+        assertEquals(30, book.getSizeAhead(4));
+        assertEquals(2, book.getOrdersAhead(4));
+
+        book.modify(1, 50);
+        assertEquals(1, book.getFirstOrder(0, 1));
+        assertEquals(70, book.getSizeAhead(4));
+        book.cancel(2);
+        assertEquals(4, book.getNextOrder(1));
+        assertEquals(50, book.getSizeAhead(4));
+        assertEquals(1, book.getOrdersAhead(4));
+        assertThrows(IllegalStateException.class, () -> book.add(4, 1, 200, 1, 4));
+        book.add(5, 1, 104, 1, 4);
+        assertEquals(102.5, book.getMidpoint());
+        assertEquals(3, book.getSpread());
+    }
+
+    @Test
+    void emptiedLevelsAreReusedOnEitherSide() {
+        OrderLevelBook book = new OrderLevelBook(16);
+        ReferenceQueues ref = new ReferenceQueues();
+        // Far more arrivals at one price than a level's initial slots, so it renumbers and grows.
+        for (int round = 0; round < 4; round++) {
+            for (int i = 0; i < 40; i++) {
+                long id = round * 100 + i;
+                book.add(id, round & 1, 100, 1 + i, i);
+                ref.add(id, round & 1, 100, 1 + i, i);
+                if (i % 3 == 0) {
+                    book.cancel(id - 1);
+                    ref.cancel(id - 1);
+                }
+            }
+            ref.assertMatches(book);
+            book.clear();
+            ref.clear();
+            ref.assertMatches(book);
+        }
+    }
+
+    @Test
+    void randomOperationsMatchReference() {
+        SplittableRandom random = new SplittableRandom(11);
+        OrderLevelBook book = new OrderLevelBook(16);
+        ReferenceQueues ref = new ReferenceQueues();
+        for (int round = 0; round < 20_000; round++) {
+            long id = random.nextInt(300);
+            int op = random.nextInt(100);
+            if (op < 45) {
+                int side = random.nextInt(2);
+                // A narrow band of prices, so levels keep emptying and being reused.
+                long price = side == 0 ? 100 - random.nextInt(6) : 99 + random.nextInt(6);
+                long size = 1 + random.nextInt(50);
+                if (ref.contains(id)) {
+                    assertThrows(IllegalStateException.class, () -> book.add(id, side, price, size, 0));
+                } else {
+                    book.add(id, side, price, size, round);
+                    ref.add(id, side, price, size, round);
+                }
+            } else if (op < 70) {
+                long size = 1 + random.nextInt(50);
+                assertEquals(ref.modify(id, size), book.modify(id, size));
+            } else if (op < 99) {
+                assertEquals(ref.cancel(id), book.cancel(id));
+            } else {
+                book.clear();
+                ref.clear();
+            }
+            if (round % 16 == 0 || op == 99) ref.assertMatches(book);
+        }
+        ref.assertMatches(book);
+    }
+
+    /**
+     * Naive per-level queues: one list of (id, price, size, ts) orders per side, by price best
+     * first and then by arrival, scanned on every call.
+     */
+    private static final class ReferenceQueues {
+        private final List<List<long[]>> sides = List.of(new ArrayList<>(), new ArrayList<>());
+
+        void add(long id, int side, long price, long size, long ts) {
+            List<long[]> orders = sides.get(side);
+            int at = 0;
+            while (at < orders.size() && (side == 0 ? orders.get(at)[1] >= price : orders.get(at)[1] <= price)) at++;
+            orders.add(at, new long[] {id, price, size, ts});
+        }
+
+        boolean modify(long id, long size) {
+            long[] order = find(id);
+            if (order == null) return false;
+            order[2] = size;
+            return true;
+        }
+
+        boolean cancel(long id) {
+            long[] order = find(id);
+            return order != null && sides.get(sideOf(id)).remove(order);
+        }
+
+        void clear() {
+            sides.get(0).clear();
+            sides.get(1).clear();
+        }
+
+        boolean contains(long id) {
+            return find(id) != null;
+        }
+
+        void assertMatches(OrderLevelBook book) {
+            int count = 0;
+            for (int side = 0; side < 2; side++) {
+                List<long[]> orders = sides.get(side);
+                count += orders.size();
+                int level = -1;
+                long levelSize = 0;
+                long ahead = 0;
+                int queued = 0;
+                long previous = Long.MIN_VALUE;
+                for (int i = 0; i < orders.size(); i++) {
+                    long[] o = orders.get(i);
+                    String at = "order " + o[0];
+                    if (i == 0 || o[1] != orders.get(i - 1)[1]) {
+                        if (level >= 0) assertLevel(book, side, level, levelSize, queued);
+                        level++;
+                        levelSize = ahead = queued = 0;
+                        assertEquals(o[1], book.getLevelPrice(side, level), "price of level " + side + "/" + level);
+                        assertEquals(o[0], book.getFirstOrder(side, level), "first of level " + side + "/" + level);
+                    } else {
+                        assertEquals(o[0], book.getNextOrder(previous), "next after " + previous);
+                    }
+                    assertEquals(side, book.getOrderSide(o[0]), at);
+                    assertEquals(level, book.getOrderLevel(o[0]), at);
+                    assertEquals(o[1], book.getOrderPrice(o[0]), at);
+                    assertEquals(o[2], book.getOrderSize(o[0]), at);
+                    assertEquals(o[3], book.getOrderTimestamp(o[0]), at);
+                    assertEquals(ahead, book.getSizeAhead(o[0]), "size ahead of " + at);
+                    assertEquals(queued, book.getOrdersAhead(o[0]), "orders ahead of " + at);
+                    levelSize += o[2];
+                    ahead += o[2];
+                    queued++;
+                    previous = o[0];
+                }
+                if (level >= 0) {
+                    assertLevel(book, side, level, levelSize, queued);
+                    assertEquals(Long.MIN_VALUE, book.getNextOrder(previous));
+                }
+                assertEquals(level + 1, book.getDepth(side), "depth " + side);
+                assertEquals(Long.MIN_VALUE, book.getLevelPrice(side, level + 1));
+            }
+            assertEquals(count, book.getOrderCount());
+        }
+
+        private static void assertLevel(OrderLevelBook book, int side, int level, long size, int orders) {
+            assertEquals(size, book.getLevelSize(side, level), "size of level " + side + "/" + level);
+            assertEquals(orders, book.getLevelOrderCount(side, level), "orders at level " + side + "/" + level);
+        }
+
+        private int sideOf(long id) {
+            for (long[] o : sides.get(0)) {
+                if (o[0] == id) return 0;
+            }
+            return 1;
+        }
+
+        private long[] find(long id) {
+            for (List<long[]> orders : sides) {
+                for (long[] o : orders) {
+                    if (o[0] == id) return o;
+                }
+            }
+            return null;
+        }
+    }
+}
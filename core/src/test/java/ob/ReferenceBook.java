@@ -0,0 +1,162 @@
+package ob;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Naive book the tests compare OrderBook against: one list of (price, size, ts, id) entries
+ * per side in book order, spilled entries included, scanned on every call.
+ */
+final class ReferenceBook {
+    private final List<List<long[]>> sides = List.of(new ArrayList<>(), new ArrayList<>());
+    private final int depth;
+
+    /** @param depth entries per side the array part of the book holds */
+    ReferenceBook(int depth) {
+        this.depth = depth;
+    }
+
+    void add(int side, long price, long size, long ts, long id) {
+        List<long[]> entries = sides.get(side);
+        int at = 0;
+        while (at < entries.size() && (side == 0 ? entries.get(at)[0] >= price : entries.get(at)[0] <= price)) at++;
+        entries.add(at, new long[] {price, size, ts, id});
+    }
+
+    boolean modify(long id, int level, int side, long size) {
+        long[] entry = find(id, level, side);
+        if (entry == null) return false;
+        entry[1] = size;
+        return true;
+    }
+
+    boolean remove(long id, int level, int side) {
+        long[] entry = find(id, level, side);
+        return entry != null && sides.get(side).remove(entry);
+    }
+
+    void clearById(long id, int side) {
+        sides.get(side).removeIf(e -> e[3] == id);
+    }
+
+    void clear(int side) {
+        sides.get(side).clear();
+    }
+
+    /** Removes side's entries with a timestamp before cutoff and returns how many went. */
+    int expire(int side, long cutoff) {
+        List<long[]> entries = sides.get(side);
+        int before = entries.size();
+        entries.removeIf(e -> e[2] < cutoff);
+        return before - entries.size();
+    }
+
+    /** Oldest timestamp on side, spilled entries included, or Long.MAX_VALUE if it is empty. */
+    long oldest(int side) {
+        long min = Long.MAX_VALUE;
+        for (long[] e : sides.get(side)) min = Math.min(min, e[2]);
+        return min;
+    }
+
+    int count(long id, int side) {
+        int n = 0;
+        for (long[] e : sides.get(side)) n += e[3] == id ? 1 : 0;
+        return n;
+    }
+
+    int depth(int side) {
+        return Math.min(depth, sides.get(side).size());
+    }
+
+    int spilled(int side) {
+        return sides.get(side).size() - depth(side);
+    }
+
+    private long[] find(long id, int level, int side) {
+        int n = 0;
+        for (long[] e : sides.get(side)) {
+            if (e[3] == id && n++ == level) return e;
+        }
+        return null;
+    }
+
+    // (price, total size) per collapsed level of the array part.
+    private List<long[]> collapsed(int side) {
+        List<long[]> levels = new ArrayList<>();
+        List<long[]> entries = sides.get(side);
+        for (int i = 0; i < depth(side); i++) {
+            long[] e = entries.get(i);
+            if (levels.isEmpty() || levels.get(levels.size() - 1)[0] != e[0]) levels.add(new long[] {e[0], 0});
+            levels.get(levels.size() - 1)[1] += e[1];
+        }
+        return levels;
+    }
+
+    private List<long[]> uncrossed(int side) {
+        List<long[]> own = collapsed(side);
+        List<long[]> other = collapsed(1 - side);
+        if (own.isEmpty() || other.isEmpty()) return own;
+        long best = other.get(0)[0];
+        List<long[]> levels = new ArrayList<>();
+        for (long[] l : own) {
+            if (side == 0 ? l[0] < best : l[0] > best) levels.add(l);
+        }
+        return levels;
+    }
+
+    /** Size-weighted price of levels [start, end), NaN if they hold no size. */
+    double vwap(int side, int start, int end, boolean collapse, boolean uncross) {
+        double value = 0;
+        long size = 0;
+        if (collapse) {
+            List<long[]> levels = uncross ? uncrossed(side) : collapsed(side);
+            for (int i = start; i < Math.min(end, levels.size()); i++) {
+                value += (double) levels.get(i)[0] * levels.get(i)[1];
+                size += levels.get(i)[1];
+            }
+        } else {
+            List<long[]> entries = sides.get(side);
+            for (int i = start; i < Math.min(end, depth(side)); i++) {
+                value += (double) entries.get(i)[0] * entries.get(i)[1];
+                size += entries.get(i)[1];
+            }
+        }
+        return size > 0 ? value / size : Double.NaN;
+    }
+
+    /** Asserts that every raw, collapsed and uncrossed query of book agrees with this model. */
+    void assertMatches(OrderBook book) {
+        long[] data = book.getData();
+        for (int side = 0; side < 2; side++) {
+            List<long[]> entries = sides.get(side);
+            assertEquals(depth(side), data[side], "depth of side " + side);
+            assertEquals(spilled(side), book.getSpillDepth(side), "spill of side " + side);
+            for (int i = 0; i <= depth(side); i++) {
+                long[] e = i < depth(side) ? entries.get(i) : null;
+                assertEquals(e == null ? Long.MIN_VALUE : e[0], book.getLevelPrice(side, i, false, false), "price " + side + "/" + i);
+                assertEquals(e == null ? Long.MIN_VALUE : e[1], book.getLevelSize(side, i, false, false), "size " + side + "/" + i);
+                assertEquals(e == null ? Long.MIN_VALUE : e[2], book.getLevelTimestamp(side, i, false, false), "ts " + side + "/" + i);
+                assertEquals(e == null ? Long.MIN_VALUE : e[3], book.getLevelId(side, i, false, false), "id " + side + "/" + i);
+            }
+            for (boolean uncross : new boolean[] {false, true}) {
+                List<long[]> levels = uncross ? uncrossed(side) : collapsed(side);
+                for (int i = 0; i <= levels.size(); i++) {
+                    long[] l = i < levels.size() ? levels.get(i) : null;
+                    String at = (uncross ? "uncrossed " : "collapsed ") + side + "/" + i;
+                    assertEquals(l == null ? Long.MIN_VALUE : l[0], book.getLevelPrice(side, i, true, uncross), "price " + at);
+                    assertEquals(l == null ? Long.MIN_VALUE : l[1], book.getLevelSize(side, i, true, uncross), "size " + at);
+                }
+                assertVwap(vwap(side, 0, levels.size(), true, uncross), book.getVWAP(side, 0, levels.size(), true, uncross));
+            }
+            assertVwap(vwap(side, 0, depth(side), false, false), book.getVWAP(side));
+            assertVwap(vwap(side, 0, Integer.MAX_VALUE, true, true), book.getVWAP(side, true));
+        }
+    }
+
+    static void assertVwap(double expected, double actual) {
+        if (Double.isNaN(expected)) assertEquals(expected, actual);
+        else assertEquals(expected, actual, Math.abs(expected) * 1e-9);
+    }
+}
@@ -0,0 +1,90 @@
+package ob;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.LongBuffer;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static ob.OrderBook.EVENT_SIZE;
+
+class SharedBookTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void incrementalPublishesMatchTheBook() throws IOException {
+        SplittableRandom random = new SplittableRandom(5);
+        OrderBook book = new OrderBook(16, OrderBook.OVERFLOW_SPILL);
+        for (int i = 0; i < 12; i++) book.addPrice(i & 1, (i & 1) == 0 ? 1000 - i : 1010 + i, 10, i, i % 4);
+        SharedBook writer = SharedBook.create(dir.resolve("book.bin"), book);
+        LongBuffer data = SharedBook.open(dir.resolve("book.bin")).getData();
+        assertMatches(book, data);
+
+        long[] events = new long[8 * EVENT_SIZE];
+        for (int round = 0; round < 3_000; round++) {
+            int side = random.nextInt(2);
+            long id = random.nextInt(4);
+            int op = random.nextInt(24);
+            if (op < 10) {
+                long price = side == 0 ? 1000 - random.nextInt(12) : 995 + random.nextInt(12);
+                book.addPrice(side, price, 1 + random.nextInt(50), round, id);
+            } else if (op < 16) {
+                book.modifyLevelById(id, random.nextInt(3), side, 1 + random.nextInt(50));
+            } else if (op < 20) {
+                book.removeLevelById(id, random.nextInt(3), side);
+            } else if (op < 22) {
+                int n = 1 + random.nextInt(8);
+                for (int i = 0; i < n; i++) {
+                    int at = i * EVENT_SIZE;
+                    int s = random.nextInt(2);
+                    boolean add = random.nextBoolean();
+                    events[at] = add ? OrderBook.OP_ADD : OrderBook.OP_MODIFY;
+                    events[at + 1] = s;
+                    events[at + 2] = !add ? random.nextInt(3) : s == 0 ? 1000 - random.nextInt(12) : 995 + random.nextInt(12);
+                    events[at + 3] = 1 + random.nextInt(50);
+                    events[at + 4] = round;
+                    events[at + 5] = random.nextInt(4);
+                }
+                book.applyBatch(events, 0, n);
+            } else if (op < 23) {
+                book.clearById(id, side);
+            } else {
+                book.clear(side);
+            }
+            writer.publish(book);
+            assertMatches(book, data);
+        }
+    }
+
+    private static void assertMatches(OrderBook book, LongBuffer data) {
+        long[] ids = {1, 3};
+        OrderBook.IdSet set = new OrderBook.IdSet(0, 2);
+        for (int side = 0; side < 2; side++) {
+            for (int i = 0; i <= 16; i++) {
+                String at = side + "/" + i;
+                assertEquals(book.getLevelPrice(side, i, false, false), SharedBook.getLevelPrice(data, side, i, false, false), "price " + at);
+                assertEquals(book.getLevelSize(side, i, false, false), SharedBook.getLevelSize(data, side, i, false, false), "size " + at);
+                assertEquals(book.getLevelTimestamp(side, i, false, false), SharedBook.getLevelTimestamp(data, side, i, false, false), "ts " + at);
+                assertEquals(book.getLevelId(side, i, false, false), SharedBook.getLevelId(data, side, i, false, false), "id " + at);
+                for (boolean uncross : new boolean[] {false, true}) {
+                    assertEquals(book.getLevelPrice(side, i, true, uncross), SharedBook.getLevelPrice(data, side, i, true, uncross), "collapsed price " + at);
+                    assertEquals(book.getLevelSize(side, i, true, uncross), SharedBook.getLevelSize(data, side, i, true, uncross), "collapsed size " + at);
+                }
+                for (boolean collapsed : new boolean[] {false, true}) {
+                    assertEquals(book.getLevelPriceForIds(ids, i, side, collapsed), SharedBook.getLevelPriceForIds(data, ids, i, side, collapsed));
+                    assertEquals(book.getLevelSizeForIds(ids, i, side, collapsed), SharedBook.getLevelSizeForIds(data, ids, i, side, collapsed));
+                    assertEquals(book.getLevelTimestampForIds(set, i, side, collapsed), SharedBook.getLevelTimestampForIds(data, set, i, side, collapsed));
+                    assertEquals(book.getLevelSizeForIds(set, i, side, collapsed), SharedBook.getLevelSizeForIds(data, set, i, side, collapsed));
+                }
+            }
+            ReferenceBook.assertVwap(book.getVWAP(side), SharedBook.getVWAP(data, side, false));
+            ReferenceBook.assertVwap(book.getVWAP(side, true), SharedBook.getVWAP(data, side, true));
+            ReferenceBook.assertVwap(book.getVWAP(side, 1, 5, true, false), SharedBook.getVWAP(data, side, 1, 5, true, false));
+        }
+    }
+}